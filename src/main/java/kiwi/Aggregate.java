@@ -0,0 +1,49 @@
+package kiwi;
+
+/**
+ * Count, sum, min & max of the values of a key range (see KiWi.aggregate()) - computed by the scan loops
+ * directly over the chunks' data, without copying the values out. Values must be numbers.
+ */
+public class Aggregate
+{
+	private long	count = 0;
+	private long	sum = 0;
+	private long	min = Long.MAX_VALUE;
+	private long	max = Long.MIN_VALUE;
+
+	void add(long value)
+	{
+		count++;
+		sum += value;
+
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+	public long getSum()
+	{
+		return sum;
+	}
+	/** @return minimal value, or Long.MAX_VALUE if there are no values */
+	public long getMin()
+	{
+		return min;
+	}
+	/** @return maximal value, or Long.MIN_VALUE if there are no values */
+	public long getMax()
+	{
+		return max;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count=" + count + " sum=" + sum + " min=" + min + " max=" + max;
+	}
+}
@@ -0,0 +1,81 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the keys of a chunk - lets get operations skip chunks which surely don't hold their key.
+ * Bits are only set (never cleared), concurrently by put operations, so a negative answer is always correct.
+ */
+public class BloomFilter
+{
+	private static final int		HASHES = 4;		// # of bits set per key
+
+	private final AtomicLongArray	words;
+	private final int				numBits;
+
+	public BloomFilter(int numItems, int bitsPerItem)
+	{
+		int numWords = Math.max(1, (numItems * bitsPerItem + 63) / 64);
+
+		this.words = new AtomicLongArray(numWords);
+		this.numBits = numWords * 64;
+	}
+
+	/** adds key with given hash - must be done before the key can be found by other threads */
+	public void add(int hash)
+	{
+		int h1 = mix(hash);
+		int h2 = Integer.rotateLeft(h1, 16) | 1;
+
+		for (int i = 0; i < HASHES; ++i)
+		{
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			int w = bit >>> 6;
+			long mask = 1L << bit;
+
+			while (true)
+			{
+				long word = words.get(w);
+				if (((word & mask) != 0) || words.compareAndSet(w, word, word | mask))
+					break;
+			}
+		}
+	}
+
+	/** @return false if no key with given hash was added, true if it may have been added */
+	public boolean mightContain(int hash)
+	{
+		int h1 = mix(hash);
+		int h2 = Integer.rotateLeft(h1, 16) | 1;
+
+		for (int i = 0; i < HASHES; ++i)
+		{
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((words.get(bit >>> 6) & (1L << bit)) == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/** @return estimated false-positive rate, according to the fraction of set bits */
+	public double estimateFalsePositiveRate()
+	{
+		long setBits = 0;
+		for (int i = 0; i < words.length(); ++i)
+			setBits += Long.bitCount(words.get(i));
+
+		return Math.pow((double) setBits / numBits, HASHES);
+	}
+
+	/** spreads the bits of hash (murmur3 finalizer), since key hashes (e.g., of Integers) may be sequential */
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,179 @@
+package kiwi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a KiWi from sorted input, without going through put(). Chunks are filled single-threaded by appending
+ * items in key order (as compaction does), so every chunk is fully sorted (sortedCount = # of items) and is
+ * searched by binary search alone. Chunks are filled up to a fill factor, leaving room for later puts - it limits
+ * the # of items of each chunk and, for chunks which keep key & value bytes in a slab (ChunkCell), the part of the
+ * slab they use: the slab grows as items are appended, so that at least (1 - fill factor) of it is left free.
+ * Independent key ranges can be built on several threads - their chunks are then linked, and the KiWi's
+ * index built, in one pass over all chunks.
+ */
+public class BulkLoader<K extends Comparable<? super K>,V>
+{
+	/*************** Members ***************/
+	private final Chunk<K,V>		head;			// empty head chunk - first chunk of the KiWi, also creates the others
+	private final int				itemsPerChunk;	// # of items to fill each chunk with
+	private final double			fillFactor;		// fraction of each chunk's capacity (and slab) to fill
+	private final boolean			withScan;
+
+	/*************** Constructors ***************/
+	/** @param head empty head chunk, as given to KiWi's constructor (its min key is the minimal key)
+	 * @param fillFactor fraction of each chunk's capacity to fill - in (0,1] */
+	public BulkLoader(Chunk<K,V> head, double fillFactor, boolean withScan)
+	{
+		if ((fillFactor <= 0) || (fillFactor > 1))
+			throw new IllegalArgumentException("Fill factor " + fillFactor + " is not in (0,1]");
+
+		this.head = head;
+		this.withScan = withScan;
+		this.fillFactor = fillFactor;
+
+		// a chunk whose order-array is used up seems frozen - so the last item is never filled
+		this.itemsPerChunk = Math.max(1, Math.min((int) (Chunk.MAX_ITEMS * fillFactor), Chunk.MAX_ITEMS - 1));
+	}
+
+	/*************** Methods ***************/
+
+	/** builds a KiWi holding the given entries - which must be sorted by key, with no duplicate keys.
+	 * entries with null values are skipped */
+	public KiWi<K,V> load(Iterator<? extends Map.Entry<K,V>> sorted)
+	{
+		return new KiWi<>(fill(head, sorted), withScan);
+	}
+
+	/** same as load(sorted), for key ranges which are built in parallel, on up to the given # of threads.
+	 * each range must be sorted, and all keys of a range must be smaller than the keys of the next range */
+	public KiWi<K,V> load(List<? extends Iterator<? extends Map.Entry<K,V>>> ranges, int threads)
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+
+		try
+		{
+			// the first range is filled into the head chunk, the others into new chunks
+			List<Future<List<Chunk<K,V>>>> parts = new ArrayList<>(ranges.size());
+			for (int i = 0; i < ranges.size(); ++i)
+			{
+				final Chunk<K,V> first = (i == 0) ? head : null;
+				final Iterator<? extends Map.Entry<K,V>> range = ranges.get(i);
+
+				parts.add(executor.submit(new Callable<List<Chunk<K,V>>>() {
+					@Override
+					public List<Chunk<K,V>> call() {
+						return fill(first, range);
+					}
+				}));
+			}
+
+			// concatenate the ranges' chunks - in key order
+			List<Chunk<K,V>> chunks = new ArrayList<>();
+			for (Future<List<Chunk<K,V>>> part : parts)
+			{
+				List<Chunk<K,V>> partChunks = part.get();
+				if (partChunks.isEmpty())
+					continue;
+
+				if (!chunks.isEmpty())
+				{
+					int lastItem = chunks.get(chunks.size() - 1).getLastItemOrderId();
+					if ((lastItem != Chunk.NONE) &&
+							(chunks.get(chunks.size() - 1).readKey(lastItem).compareTo(partChunks.get(0).minKey) >= 0))
+						throw new IllegalArgumentException("Key ranges overlap at " + partChunks.get(0).minKey);
+				}
+
+				chunks.addAll(partChunks);
+			}
+
+			// first range was empty - the KiWi still starts with the head chunk
+			if (chunks.isEmpty() || (chunks.get(0) != head))
+				chunks.add(0, head);
+
+			return new KiWi<>(chunks, withScan);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+
+			throw new RuntimeException(ex.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/** appends the entries to chunks, starting with given chunk (or, if null, with a new chunk of the first key)
+	 * @return the filled chunks, in key order - empty if there are no entries and no first chunk */
+	private List<Chunk<K,V>> fill(Chunk<K,V> first, Iterator<? extends Map.Entry<K,V>> sorted)
+	{
+		List<Chunk<K,V>> chunks = new ArrayList<>();
+		Chunk<K,V> c = first;
+		int count = 0;
+		K prevKey = null;
+
+		if (c != null)
+			chunks.add(c);
+
+		while (sorted.hasNext())
+		{
+			Map.Entry<K,V> entry = sorted.next();
+			K key = entry.getKey();
+
+			if ((prevKey != null) && (prevKey.compareTo(key) >= 0))
+				throw new IllegalArgumentException("Keys are not sorted at " + key);
+			prevKey = key;
+
+			// nothing to remove in a new KiWi
+			if (entry.getValue() == null)
+				continue;
+
+			// start a new chunk once the current one is filled - or if the item doesn't fit in it
+			boolean appended = (c != null) && (count < itemsPerChunk) &&
+					c.appendItem(key, entry.getValue(), KiWi.FIRST_VERSION, fillFactor);
+
+			if (!appended)
+			{
+				if (c != null)
+					c.getStatistics().countCopied(count);
+
+				c = newChunk(key);
+				chunks.add(c);
+				count = 0;
+
+				if (!c.appendItem(key, entry.getValue(), KiWi.FIRST_VERSION, fillFactor))
+					throw new IllegalArgumentException("Key & value of " + key + " exceed chunk capacity");
+			}
+
+			++count;
+		}
+
+		if (c != null)
+			c.getStatistics().countCopied(count);
+
+		return chunks;
+	}
+
+	/** @return a new chunk for keys from minKey - not an infant, since it's filled before the KiWi exists */
+	private Chunk<K,V> newChunk(K minKey)
+	{
+		Chunk<K,V> c = head.newChunk(minKey);
+		c.creator = null;
+		return c;
+	}
+}
@@ -1,20 +1,29 @@
 package kiwi;
 
-import java.nio.ByteBuffer;
+import sun.misc.Unsafe;
+
+import java.nio.ByteOrder;
 
 public class Cell implements Comparable<Cell>
 {
 	public static final	Cell Empty = new Cell(new byte[0], 0, 0);
 	
+	public static final int			PREFIX_SIZE = 8;	// # of leading bytes kept in the prefix
+	private static final boolean	BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
 	private final byte[]	bytes;
 	private final int		offset;
 	private final int		length;
+
+	private long			prefix;		// first PREFIX_SIZE bytes, as unsigned big-endian long (zero padded)
+	private int				hash;		// cached hash code, 0 if not computed yet
 	
 	public Cell(byte[] bytes, int off, int len)
 	{
 		this.bytes = bytes;
 		this.offset = off;
 		this.length = len;
+		this.prefix = readPrefix(bytes, off, len);
 	}
 	
 	public byte[] getBytes()
@@ -29,16 +38,28 @@ public class Cell implements Comparable<Cell>
 	{
 		return length;
 	}
+	public long getPrefix()
+	{
+		return prefix;
+	}
+
+	/** recomputes cached prefix & hash after the wrapped bytes were changed.
+	 * only for cells which are not shared (e.g., reused by a single thread) */
+	void refresh()
+	{
+		this.prefix = readPrefix(bytes, offset, length);
+		this.hash = 0;
+	}
 	
 	@Override
 	public String toString()
 	{
 		if (length == 0) return "Empty";
 		
-		// TODO remove this method! works only for INTEGER!
+		// TODO remove this method! works only for INTEGER (encoded as by KiWiMapVLK, with the sign bit flipped)!
 		int n = bytes[offset] << 24 | (bytes[offset+1] & 0xFF) << 16 |
 				(bytes[offset+2] & 0xFF) << 8 | (bytes[offset+3] & 0xFF);
-		return n+"";
+		return (n ^ Integer.MIN_VALUE)+"";
 	}
 	
 	@Override
@@ -55,18 +76,92 @@ public class Cell implements Comparable<Cell>
 	@Override
 	public boolean equals(Object obj)
 	{
-		return this.compareTo((Cell) obj) == 0;
+		if (!(obj instanceof Cell))
+			return false;
+
+		Cell c = (Cell) obj;
+		return (length == c.length) && (prefix == c.prefix) && (this.compareTo(c) == 0);
 	}
 	
 	@Override
 	public int hashCode()
 	{
-		return super.hashCode();
+		int h = hash;
+		if (h == 0)
+		{
+			h = 1;
+			for (int i = 0; i < length; ++i)
+				h = 31 * h + bytes[offset + i];
+
+			hash = h;
+		}
+		return h;
 	}
 	
 
 	public int compareTo(Cell c)
 	{
-		return ByteBuffer.wrap(bytes, offset, length).compareTo(ByteBuffer.wrap(c.getBytes(), c.getOffset(), c.getLength()));
+		return compare(prefix, bytes, offset, length, c.prefix, c.bytes, c.offset, c.length);
+	}
+
+	/** compares two byte ranges whose prefixes (see readPrefix) are already known - ranges are read only
+	 * if the prefixes are equal and both are longer than PREFIX_SIZE */
+	public static int compare(long prefix1, byte[] b1, int off1, int len1, long prefix2, byte[] b2, int off2, int len2)
+	{
+		if (prefix1 != prefix2)
+			return Long.compareUnsigned(prefix1, prefix2);
+
+		// equal prefixes - the first min(len1, len2, PREFIX_SIZE) bytes are equal
+		if (len1 <= PREFIX_SIZE || len2 <= PREFIX_SIZE)
+			return len1 - len2;
+
+		return compare(b1, off1 + PREFIX_SIZE, len1 - PREFIX_SIZE, b2, off2 + PREFIX_SIZE, len2 - PREFIX_SIZE);
+	}
+
+	/** compares two byte ranges lexicographically, as unsigned bytes (a shorter prefix is smaller).
+	 * compares 8 bytes at a time, as unsigned longs */
+	public static int compare(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2)
+	{
+		int len = Math.min(len1, len2);
+		int i = 0;
+
+		for (; i + 8 <= len; i += 8)
+		{
+			long w1 = readLong(b1, off1 + i);
+			long w2 = readLong(b2, off2 + i);
+
+			if (w1 != w2)
+				return Long.compareUnsigned(w1, w2);
+		}
+
+		for (; i < len; ++i)
+		{
+			int cmp = (b1[off1 + i] & 0xFF) - (b2[off2 + i] & 0xFF);
+			if (cmp != 0)
+				return cmp;
+		}
+
+		return len1 - len2;
+	}
+
+	/** reads the first PREFIX_SIZE bytes of given range as an unsigned big-endian long (zero padded if shorter),
+	 * so that comparing prefixes as unsigned longs is the same as comparing their bytes */
+	public static long readPrefix(byte[] b, int off, int len)
+	{
+		if (len >= PREFIX_SIZE)
+			return readLong(b, off);
+
+		long p = 0;
+		for (int i = 0; i < len; ++i)
+			p |= (b[off + i] & 0xFFL) << (8 * (PREFIX_SIZE - 1 - i));
+
+		return p;
+	}
+
+	/** reads 8 bytes as a big-endian long */
+	private static long readLong(byte[] b, int off)
+	{
+		long w = Chunk.unsafe.getLong(b, Unsafe.ARRAY_BYTE_BASE_OFFSET + (long) off);
+		return BIG_ENDIAN ? w : Long.reverseBytes(w);
 	}
 }
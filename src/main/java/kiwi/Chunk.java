@@ -4,12 +4,14 @@ import kiwi.ThreadData.PutData;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Constructor;
+import java.util.Collections;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by msulamy on 7/27/15.
@@ -20,9 +22,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	protected static final int		NONE = 0;	// constant for "no version", "no index", etc. MUST BE 0!
 	protected static final int		FREEZE_VERSION	= 1;
 	protected static final int 		CANCELED_REMOVE_NEXT = -1;
+	protected static final int		UNCLAIMED_NEXT = -2;	// next of a conditional item, before any position was claimed
 	
 	// order_size(4) = next + version + key + data
-	protected static final int		ORDER_SIZE = 4;		// # of fields in each item of order array
+	protected static final int		ORDER_SIZE = 4;		// default # of fields in each item of order array
 	protected static final int		OFFSET_NEXT = 0;
 	protected static final int		OFFSET_VERSION = 1;	// POSITIVE means item is linked, otherwise might not be linked yet
 	protected static final int		OFFSET_KEY = 2;
@@ -35,15 +38,27 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	
 	public static int				MAX_ITEMS = 4500;
 	public static boolean			ALLOW_DUPS = true;
+	public static int				BLOOM_BITS_PER_ITEM = 10;	// size of per-chunk bloom filter (0 disables it)
+	public static int				EXPRESS_LEVELS = 4;	// levels of express pointers over the unsorted part (0 disables them)
+	public static int				MAX_RANGE_TOMBSTONES = 8;	// # of tombstones added to a chunk between rebalances (see removeRange)
 	//private static final int		MIN_ITEMS = 0;
 
 	/***************	Members				***************/
 	static final Unsafe					unsafe;
 	private final int[]							orderArray;	// array is initialized to 0, i.e., NONE - this is important!
 	protected final Object[]							dataArray;
+	protected final int							orderSize;		// # of fields in each item of order array (ORDER_SIZE, or more for wider keys)
+	protected final int							orderCapacity;	// # of ints in order array (also valid for off-heap chunks)
+	protected final int							dataCapacity;	// # of cells in data array (also valid for off-heap chunks)
 
 	private final AtomicInteger					orderIndex;	// points to next free index of order array
 	private final AtomicInteger					dataIndex;	// points to next free index of data array 
+	private final AtomicInteger					pendingPuts;	// # of puts into this chunk published in putArray
+	private final BloomFilter					bloom;		// keys of all items allocated in this chunk (null if disabled)
+	private final int[]							expressArray;	// express towers over items added to list after sorting (see addToExpress)
+	private final AtomicInteger					expressIndex;	// points to next free tower of express array
+	private final int							towerSize;	// # of ints in each tower - item + next tower per level
+	private final AtomicReference<RangeTombstone<K>>	rangeTombstones;	// range removals of this chunk, newest first (null if none)
 
 	public K									minKey;		// minimal key that can be put in this chunk
 
@@ -59,8 +74,9 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	private int orderIndexSerial;
 	private int dataIndexSerial;
 
-	private PutData<K,V>[] putArray;
-	private static final int PAD_SIZE = 100;
+	// pending puts of all chunks (of all KiWi instances), by thread slot. a thread has at most one pending put,
+	// so a single array (which does not grow with the number of chunks) is enough - readers filter by chunk
+	private static final PutData[] putArray = new PutData[ThreadSlots.capacity() * (KiWi.PAD_SIZE + 1)];
 
 	public final int getOrderIndexSerial()
 	{
@@ -72,8 +88,16 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return get(HEAD_NODE,OFFSET_NEXT);
 	}
 
+	/** @return index of the last allocated item (NONE if there's none) - the largest key, if the chunk was
+	 * filled by appendItem() */
+	public final int getLastItemOrderId()
+	{
+		int oi = orderIndex.get() - orderSize;
+		return (oi < FIRST_ITEM) ? NONE : oi;
+	}
+
 	public final boolean isFreezed() {
-		return orderIndex.get() >= orderArray.length;
+		return orderIndex.get() >= orderCapacity;
 	}
 
 	public final boolean tryFreezeItem(final int oi) {
@@ -82,21 +106,205 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 	public abstract int copyValues(Object[] result, final int idx, final int myVer, final K min, final K max, final SortedMap<K,PutData<K,V>> items);
 
+	/** copies into result array (V[] or a primitive array supported by readDataRange) the newest value of
+	 * each non-removed key in [min,max] with version <= myVer (keys removed by a tombstone of version <= myVer,
+	 * which isn't older than the value, are skipped too). values of consecutive keys which are also
+	 * consecutive in the data array are copied together, as one range.
+	 * @param idx index in result to start copying at - 0 means this is the first chunk of the scan
+	 * @return number of values copied */
+	protected final int copyValuesInto(Object result, final int idx, final int myVer, final K min, final K max)
+	{
+		return copyValuesInto(result, idx, myVer, min, max, Integer.MAX_VALUE, null);
+	}
+
+	/** same as copyValuesInto(), for a page of a bounded scan - copies at most 'limit' values, of keys larger
+	 * than cursor's last key (if set). once the limit is reached, cursor's last key is set to the last copied key */
+	protected final int copyValuesInto(Object result, final int idx, final int myVer, final K min, final K max,
+			final int limit, final ScanCursor<K,V> cursor)
+	{
+		int oi = (idx == 0) ? findFirst(min, myVer) : getFirst(myVer);
+
+		// resuming a bounded scan - skip the key copied last
+		K after = (cursor != null) ? cursor.lastKey : null;
+		while ((after != null) && (oi != NONE) && (compareKey(oi, after) <= 0))
+			oi = get(oi, OFFSET_NEXT);
+
+		int itemCount = 0;
+		int dataStart = NONE;	// data index of the first value in the current range
+		int dataCount = 0;		// # of values in the current range
+		int keyItem = NONE;		// newest (visible) item of the last handled key
+		RangeTombstone<K> tombstones = rangeTombstones.get();
+
+		while ((oi != NONE) && (compareKey(oi, max) <= 0))
+		{
+			// skip versions beyond my version, and older versions of a key already handled
+			int version = getVersion(oi);
+			if ((version <= myVer) && ((keyItem == NONE) || !equalKeys(keyItem, oi)))
+			{
+				keyItem = oi;
+				int di = get(oi, OFFSET_DATA);
+
+				// the value is NULL, the item was removed (or its range was) -- skip it
+				if ((di > 0) && ((tombstones == null) || !isRangeRemoved(tombstones, oi, version, myVer)))
+				{
+					if ((dataCount > 0) && (dataStart + dataCount == di))
+					{
+						dataCount++;
+					}
+					else
+					{
+						// copy continuous range of data, and start a new one
+						if (dataCount > 0)
+							copyDataRange(dataStart, result, idx + itemCount, dataCount);
+
+						itemCount += dataCount;
+						dataStart = di;
+						dataCount = 1;
+					}
+
+					// page is full - remember where to resume
+					if (itemCount + dataCount == limit)
+					{
+						cursor.lastKey = readKey(oi);
+						break;
+					}
+				}
+			}
+
+			oi = get(oi, OFFSET_NEXT);
+		}
+
+		if (dataCount > 0)
+			copyDataRange(dataStart, result, idx + itemCount, dataCount);
+
+		return itemCount + dataCount;
+	}
+
+	/** passes to visitor the newest value with version <= myVer of each non-removed key in [min,max]
+	 * (same filtering as copyValuesInto())
+	 * @param first true if this is the first chunk of the scan
+	 * @return false if the visitor stopped the scan */
+	protected final boolean visitValues(ScanVisitor<K,V> visitor, final boolean first, final int myVer, final K min, final K max)
+	{
+		int oi = first ? findFirst(min, myVer) : getFirst(myVer);
+		int keyItem = NONE;		// newest (visible) item of the last handled key
+		RangeTombstone<K> tombstones = rangeTombstones.get();
+
+		while ((oi != NONE) && (compareKey(oi, max) <= 0))
+		{
+			// skip versions beyond my version, and older versions of a key already handled
+			int version = getVersion(oi);
+			if ((version <= myVer) && ((keyItem == NONE) || !equalKeys(keyItem, oi)))
+			{
+				keyItem = oi;
+				int di = get(oi, OFFSET_DATA);
+
+				// the value is NULL, the item was removed (or its range was) -- skip it
+				if ((di > 0) && ((tombstones == null) || !isRangeRemoved(tombstones, oi, version, myVer)) &&
+						!visitor.visit(readKey(oi), (V) readData(oi, di), version))
+					return false;
+			}
+
+			oi = get(oi, OFFSET_NEXT);
+		}
+
+		return true;
+	}
+
+	/** copies a range of data-array into result - or adds it to result, if it's an Aggregate, or nothing
+	 * if result is null (only counting) */
+	private void copyDataRange(int di, Object result, int idx, int length)
+	{
+		if (result == null)
+			return;
+		else if (result instanceof Aggregate)
+			aggregateDataRange(di, (Aggregate) result, length);
+		else
+			readDataRange(di, result, idx, length);
+	}
+
+	/** copies into result the values of the largest keys in [min,max] which are smaller than 'upper' (if it's
+	 * not null) - the newest value with version <= myVer of each non-removed key, from the largest key down.
+	 * the list can't be walked backwards, so visible items are first collected in key order into 'ring',
+	 * keeping only the last (largest) ones
+	 * @param idx index in result to start copying at
+	 * @param limit max # of values to copy - and of items kept in ring (which must be at least that long,
+	 * 			or MAX_ITEMS long)
+	 * @return number of values copied */
+	protected final int copyValuesDescending(Object result, final int idx, final int limit, final int[] ring,
+			final int myVer, final K min, final K max, final K upper)
+	{
+		int capacity = Math.min(limit, ring.length);
+		int count = 0;
+		int keyItem = NONE;		// newest (visible) item of the last handled key
+		RangeTombstone<K> tombstones = rangeTombstones.get();
+
+		int oi = findFirst(min, myVer);
+		while ((oi != NONE) && (compareKey(oi, max) <= 0) && ((upper == null) || (compareKey(oi, upper) < 0)))
+		{
+			// skip versions beyond my version, and older versions of a key already handled
+			int version = getVersion(oi);
+			if ((version <= myVer) && ((keyItem == NONE) || !equalKeys(keyItem, oi)))
+			{
+				keyItem = oi;
+
+				// the value is NULL, the item was removed (or its range was) -- skip it
+				if ((get(oi, OFFSET_DATA) > 0) && ((tombstones == null) || !isRangeRemoved(tombstones, oi, version, myVer)))
+				{
+					ring[count % capacity] = oi;
+					count++;
+				}
+			}
+
+			oi = get(oi, OFFSET_NEXT);
+		}
+
+		// copy from the last collected item backwards
+		int copied = Math.min(count, capacity);
+		for (int i = 0; i < copied; ++i)
+		{
+			int item = ring[(count - 1 - i) % capacity];
+			readDataRange(get(item, OFFSET_DATA), result, idx + i, 1);
+		}
+
+		return copied;
+	}
+
 	/** this method is used by scan operations (ONLY) to help pending put operations set a version
 	 * @return sorted map of items matching key range of any currently-pending put operation */
 
 	public SortedMap<K,PutData<K,V>> helpPutInScan(int myVersion, K min, K max)
 	{
+		// fast path - no pending puts, no need to go over thread data
+		if (!hasPendingPuts())
+			return Collections.emptySortedMap();
+
 		SortedMap<K,PutData<K,V>> items = new TreeMap<>();
 
 		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i)
+		for (int i = 0, n = ThreadSlots.bound(); i < n; ++i)
 		{
-			// make sure data is for a Put operatio
-			PutData<K,V> currPut = putArray[pad(i)];
+			// make sure data is for a Put operation into this chunk
+			PutData<K,V> currPut = readPut(i);
 			if (currPut == null)
 				continue;
 
+			// run of a batch put - help each of its items in key range (the run is sorted by key)
+			if (currPut.isRun())
+			{
+				for (int j = runLowerBound(currPut, min); j < currPut.count; ++j)
+				{
+					int oi = currPut.orderIndex + j * orderSize;
+					if (compareKey(oi, max) > 0)
+						break;
+
+					int currVer = setPendingVersion(currPut, oi, myVersion);
+					if ((currVer != Chunk.FREEZE_VERSION) && (currVer <= myVersion))
+						addPendingItem(items, readKey(oi), new PutData<>(this, oi), currVer);
+				}
+				continue;
+			}
+
 			// if put operation's key is not in key range - skip it
 			K currKey = readKey(currPut.orderIndex);
 			if ((currKey.compareTo(min) < 0) || (currKey.compareTo(max) > 0))
@@ -113,41 +321,64 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			if ((currVer == Chunk.FREEZE_VERSION) || (currVer > myVersion))
 				continue;
 
-			// get found item matching current key
-			PutData<K,V> item = items.get(currKey);
-
-			// is there such an item we previously found? check if we need to replace it
-			if (item != null)
+			// conditional put isn't seen while pending - help it link (or cancel), so it's either in the list or gone
+			if (currPut.expected != PutData.UNCONDITIONAL)
 			{
-				// get its version
-				int itemVer = getVersion(item.orderIndex);
+				addToList(currPut.orderIndex, currKey, currPut.expected);
+				continue;
+			}
 
-				// existing item is newer - don't replace
-				if (itemVer > currVer)
-				{
-					continue;
-				}
-				// if same versions - continue checking (otherwise currVer is newer so will replace item)
-				else if (itemVer == currVer)
-				{
-					// same chunk & version but items's index is larger - don't replace
-					if (item.orderIndex > currPut.orderIndex)
-						continue;
-				}
+			addPendingItem(items, currKey, currPut, currVer);
+		}
 
+		return items;
+	}
+
+	/** adds a pending put (of given version) to the items map of a scan - unless the map holds a newer put of its key */
+	private void addPendingItem(SortedMap<K,PutData<K,V>> items, K currKey, PutData<K,V> currPut, int currVer)
+	{
+		// get found item matching current key
+		PutData<K,V> item = items.get(currKey);
+
+		// is there such an item we previously found? check if we need to replace it
+		if (item != null)
+		{
+			// get its version
+			int itemVer = getVersion(item.orderIndex);
+
+			// existing item is newer - don't replace
+			if (itemVer > currVer)
+			{
+				return;
+			}
+			// if same versions - continue checking (otherwise currVer is newer so will replace item)
+			else if (itemVer == currVer)
+			{
+				// same chunk & version but items's index is larger - don't replace
+				if (item.orderIndex > currPut.orderIndex)
+					return;
 			}
 
-			// if we've reached here then curr is newer than item, and we replace it
-			items.put(currKey, currPut);
 		}
 
-		return items;
+		// if we've reached here then curr is newer than item, and we replace it
+		items.put(currKey, currPut);
 	}
 
 
-	private final int pad(int idx)
+	/** a put increments the counter before it is published, and decrements it after it is cleared -
+	 * so if there are no pending puts, no put into this chunk is published in the thread array */
+	private boolean hasPendingPuts()
 	{
-		return (PAD_SIZE + idx*PAD_SIZE);
+		return pendingPuts.get() != 0;
+	}
+
+	/** @return pending put of given thread slot, or null if there's none or it's into another chunk */
+	@SuppressWarnings("unchecked")
+	private PutData<K,V> readPut(int slot)
+	{
+		PutData<K,V> pd = (PutData<K,V>) putArray[KiWi.pad(slot)];
+		return ((pd != null) && (pd.chunk == this)) ? pd : null;
 	}
 
 
@@ -155,46 +386,69 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * @return newest item matching myKey of any currently-pending put operation */
 	public PutData<K,V> helpPutInGet(int myVersion, K myKey)
 	{
-		// marks the most recent put that was found in the thread-array
+		// fast path - no pending puts, no need to go over thread data
+		if (!hasPendingPuts())
+			return null;
+
+		// marks the most recent put that was found in the thread-array (and its item, if the put is a run)
 		PutData<K,V> newestPut = null;
+		int newestItem = Chunk.NONE;
 		int newestVer = Chunk.NONE;
 
 		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i)
+		for (int i = 0, n = ThreadSlots.bound(); i < n; ++i)
 		{
-			// make sure data is for a Put operation
-			PutData<K,V> currPut = putArray[pad(i)];
+			// make sure data is for a Put operation into this chunk
+			PutData<K,V> currPut = readPut(i);
 			if (currPut == null)
 				continue;
 
+			// item of put operation with my key - in a run of a batch put, search it by key
+			int currItem = currPut.orderIndex;
+			if (currPut.isRun())
+			{
+				int j = runLowerBound(currPut, myKey);
+				currItem = (j < currPut.count) ? currPut.orderIndex + j * orderSize : Chunk.NONE;
+			}
+
 			// if put operation's key is not same as my key - skip it
-			K currKey = readKey(currPut.orderIndex);
-			if (currKey.compareTo(myKey) != 0)
+			if ((currItem == Chunk.NONE) || (compareKey(currItem, myKey) != 0))
 				continue;
 
 			// read the current version of the item
-			int currVer = getVersion(currPut.orderIndex);
+			int currVer = getVersion(currItem);
 
 			// if empty, try to set to my version
 			if (currVer == Chunk.NONE)
-				currVer = setVersion(currPut.orderIndex, myVersion);
+				currVer = setPendingVersion(currPut, currItem, myVersion);
 
 			// if item is frozen - skip it
 			if (currVer == Chunk.FREEZE_VERSION)
 				continue;
 
+			// conditional put isn't seen while pending - help it link (or cancel), so it's either in the list or gone
+			if (currPut.expected != PutData.UNCONDITIONAL)
+			{
+				addToList(currPut.orderIndex, myKey, currPut.expected);
+				continue;
+			}
+
 			// current item has newer version than newest item - replace
 			if (currVer > newestVer)
 			{
 				newestVer = currVer;
 				newestPut = currPut;
+				newestItem = currItem;
 			}
 			// same version for both item - check according to chunk
 			else if (currVer == newestVer)
 			{
 					// same chunk & version but current's index is larger - it is newer
-					if (currPut.orderIndex > newestPut.orderIndex)
+					if (currItem > newestItem)
+					{
 						newestPut = currPut;
+						newestItem = currItem;
+					}
 			}
 		}
 
@@ -202,30 +456,294 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		if ((newestPut == null) || (isRebalanced()))
 			return null;
 		else
-			return newestPut;
+			return newestPut.isRun() ? new PutData<>(this, newestItem) : newestPut;
+	}
+
+	/** same as helpPutInGet(myVersion, myKey), for all keys in [min,max] - used by multi-key gets, which read
+	 * the thread array once per chunk
+	 * @return sorted map of the newest item of each key of any currently-pending put operation */
+	public SortedMap<K,PutData<K,V>> helpPutInGet(int myVersion, K min, K max)
+	{
+		// fast path - no pending puts, no need to go over thread data
+		if (!hasPendingPuts())
+			return Collections.emptySortedMap();
+
+		SortedMap<K,PutData<K,V>> items = new TreeMap<>();
+
+		// go over thread data of all threads
+		for (int i = 0, n = ThreadSlots.bound(); i < n; ++i)
+		{
+			// make sure data is for a Put operation into this chunk
+			PutData<K,V> currPut = readPut(i);
+			if (currPut == null)
+				continue;
+
+			// items of put operation in key range - all items of a run, or the put's single item
+			int first = currPut.isRun() ? runLowerBound(currPut, min) : 0;
+			for (int j = first; j < currPut.count; ++j)
+			{
+				int oi = currPut.orderIndex + j * orderSize;
+				K currKey = readKey(oi);
+				if (currKey.compareTo(max) > 0)
+					break;
+				if (currKey.compareTo(min) < 0)
+					continue;
+
+				// read the current version of the item - if empty, try to set to my version
+				int currVer = getVersion(oi);
+				if (currVer == Chunk.NONE)
+					currVer = setPendingVersion(currPut, oi, myVersion);
+
+				// if item is frozen - skip it
+				if (currVer == Chunk.FREEZE_VERSION)
+					continue;
+
+				// conditional put isn't seen while pending - help it link (or cancel), so it's either in the list or gone
+				if (currPut.expected != PutData.UNCONDITIONAL)
+				{
+					addToList(oi, currKey, currPut.expected);
+					continue;
+				}
+
+				addPendingItem(items, currKey, currPut.isRun() ? new PutData<>(this, oi) : currPut, currVer);
+			}
+		}
+
+		// pending items are ignored once the chunk is rebalanced, as in helpPutInGet(myVersion, myKey)
+		if (isRebalanced())
+			return Collections.emptySortedMap();
+
+		return items;
+	}
+
+	/** binary searches the items of a run (which are sorted by key)
+	 * @return position in run of the first item whose key is equal or larger than key (count if there's none) */
+	private int runLowerBound(PutData<K,V> run, K key)
+	{
+		int lo = 0;
+		int hi = run.count;
+
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(run.orderIndex + mid * orderSize, key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	/** sets the version of a pending item to given version, unless it already has one - an item of a run gets
+	 * the run's version, which is set once for all of its items (so they are all seen at the same version)
+	 * @return whatever version is successfuly set (by this thread or another) */
+	private int setPendingVersion(PutData<K,V> pd, int orderIndex, int version)
+	{
+		if (!pd.isRun())
+			return setVersion(orderIndex, version);
+
+		pd.runVersion.compareAndSet(NONE, version);
+		int runVersion = pd.runVersion.get();
+
+		return (runVersion == FREEZE_VERSION) ? runVersion : setVersion(orderIndex, runVersion);
+	}
+
+	/** sets the version of all items of a run to given version, unless the run already has one (FREEZE_VERSION
+	 * freezes the run - none of its items is added to the chunk)
+	 * @return whatever version is successfuly set (by this thread or another) */
+	public int setRunVersion(PutData<K,V> run, int version)
+	{
+		run.runVersion.compareAndSet(NONE, version);
+		int runVersion = run.runVersion.get();
+
+		if (runVersion != FREEZE_VERSION)
+			for (int i = 0, oi = run.orderIndex; i < run.count; ++i, oi += orderSize)
+				setVersion(oi, runVersion);
+
+		return runVersion;
 	}
 
 
 	/** publish data into thread array - use null to clear **/
 	public void publishPut(PutData<K,V> data)
 	{
-		// get index of current thread
-		// since thread IDs are increasing and changing, we assume threads are created one after another (sequential IDs).
-		// thus, (ThreadID % MAX_THREADS) will return a unique index for each thread in range [0, MAX_THREADS)
-		int idx = (int) (Thread.currentThread().getId() % KiWi.MAX_THREADS);
+		// get index of current thread - unique among live threads
+		int idx = ThreadSlots.get();
+		PutData<K,V> prev = putArray[KiWi.pad(idx)];
 
-		// TODO verify the assumption about sequential IDs
+		// count the put before publishing it, so readers that see no pending puts can skip the thread array
+		if (data != null)
+			pendingPuts.incrementAndGet();
 
 		// publish into thread array
-		putArray[pad(idx)] = data;
+		putArray[KiWi.pad(idx)] = data;
 		Chunk.unsafe.storeFence();
 
+		// previous put is no longer published - uncount it (from its own chunk)
+		if (prev != null)
+			prev.chunk.pendingPuts.decrementAndGet();
+	}
+
+	/***************	Range Tombstones	***************/
+
+	/** adds a tombstone removing keys [min,max] - it has no version yet, see setRangeTombstoneVersion() */
+	public final RangeTombstone<K> addRangeTombstone(K min, K max)
+	{
+		RangeTombstone<K> head, tombstone;
+
+		do
+		{
+			head = rangeTombstones.get();
+			tombstone = new RangeTombstone<>(min, max, new AtomicInteger(NONE), head);
+		}
+		while (!rangeTombstones.compareAndSet(head, tombstone));
+
+		return tombstone;
+	}
+
+	/** tries to set (CAS) the version of given tombstone (FREEZE_VERSION freezes it)
+	 * @return whatever version is successfuly set (by this thread or another) */
+	public final int setRangeTombstoneVersion(RangeTombstone<K> tombstone, int version)
+	{
+		tombstone.version.compareAndSet(NONE, version);
+		return tombstone.version.get();
+	}
+
+	/** @return true if the chunk should be rebalanced after given tombstone was added - every MAX_RANGE_TOMBSTONES
+	 * tombstones, so the list that gets & scans check is short. tombstones still needed by a pending scan are carried
+	 * over by the rebalance, so they're counted again - but a rebalance is only repeated after more are added */
+	public final boolean hasTooManyRangeTombstones(RangeTombstone<K> tombstone)
+	{
+		return (tombstone.count % MAX_RANGE_TOMBSTONES) == 0;
+	}
+
+	/** @return true if some tombstone of this chunk has no version yet */
+	public final boolean hasPendingRangeTombstones()
+	{
+		for (RangeTombstone<K> t = rangeTombstones.get(); t != null; t = t.next)
+			if (t.version.get() == NONE)
+				return true;
+
+		return false;
+	}
+
+	/** helps the tombstones of this chunk which have no version yet set one - the given version */
+	public final void helpRangeTombstones(int version)
+	{
+		for (RangeTombstone<K> t = rangeTombstones.get(); t != null; t = t.next)
+			if (t.version.get() == NONE)
+				t.version.compareAndSet(NONE, version);
+	}
+
+	/** @return true if the given item, which is the newest version of its key, is removed by a tombstone
+	 * (for gets). false if item is NONE */
+	public final boolean isRangeRemoved(int orderIndex)
+	{
+		return (orderIndex != NONE) &&
+				isRangeRemoved(rangeTombstones.get(), orderIndex, getVersion(orderIndex), Integer.MAX_VALUE);
+	}
+
+	/** @return true if the version preceding given (linked) item was removed by a tombstone which isn't newer
+	 * than the item - i.e., the item doesn't replace a value */
+	public final boolean isPreviousRangeRemoved(int orderIndex)
+	{
+		RangeTombstone<K> tombstones = rangeTombstones.get();
+		if (tombstones == null)
+			return false;
+
+		// item may have replaced the data of an item of its own version, then there's no other item to check
+		int version = getVersion(orderIndex);
+		int next = get(orderIndex, OFFSET_NEXT);
+		boolean hasPrev = (next != NONE) && (next != CANCELED_REMOVE_NEXT) && (compareItems(orderIndex, next) == 0);
+
+		return isRangeRemoved(tombstones, orderIndex, hasPrev ? getVersion(next) : version, version);
+	}
+
+	/** @return the value of given item, as seen by a scan of version myVer - null if the item is a removal,
+	 * or if a tombstone of version in [item's version, myVer] removed its key */
+	public final V getData(int orderIndex, int myVer)
+	{
+		return isRangeRemoved(rangeTombstones.get(), orderIndex, getVersion(orderIndex), myVer) ?
+				null : getData(orderIndex);
+	}
+
+	/** counts (in statistics) the keys which given tombstone removed from this chunk - keys of its range whose
+	 * newest version up to the tombstone's is live, and which no other tombstone removed first (an older version,
+	 * or the same version and pushed earlier). called once, after the tombstone's version is set */
+	public final void countRangeRemoved(RangeTombstone<K> tombstone)
+	{
+		int myVer = tombstone.version.get();
+		RangeTombstone<K> tombstones = rangeTombstones.get();
+		int keyItem = NONE;		// newest (visible) item of the last handled key
+		int removed = 0;
+
+		int oi = findFirst(tombstone.min, myVer);
+		while ((oi != NONE) && (compareKey(oi, tombstone.max) <= 0))
+		{
+			// skip versions beyond the tombstone's, and older versions of a key already handled
+			int version = getVersion(oi);
+			if ((version <= myVer) && ((keyItem == NONE) || !equalKeys(keyItem, oi)))
+			{
+				keyItem = oi;
+				if (isLive(oi, get(oi, OFFSET_DATA), myVer - 1) && !isRangeRemoved(tombstone.next, oi, myVer, myVer))
+					removed++;
+			}
+
+			oi = get(oi, OFFSET_NEXT);
+		}
+
+		statistics.countRangeRemoved(removed);
+	}
+
+	/** @return # of the given (copied) items which a tombstone of this chunk removed */
+	private int countRangeRemoved(int orderStart, int count)
+	{
+		if (rangeTombstones.get() == null)
+			return 0;
+
+		int removed = 0;
+		for (int i = 0; i < count; ++i)
+			if (isRangeRemoved(orderStart + i * orderSize))
+				removed++;
+
+		return removed;
+	}
+
+	/** @return true if given item (with given data index) has a value, which no tombstone of version up to myVer
+	 * removed - i.e., it's live for a put of version myVer (for statistics) */
+	private boolean isLive(int orderIndex, int dataIndex, int myVer)
+	{
+		return (dataIndex > 0) && !isRangeRemoved(rangeTombstones.get(), orderIndex, getVersion(orderIndex), myVer);
+	}
+
+	/** @return tombstones of this chunk, newest first - null if there are none */
+	protected final RangeTombstone<K> getRangeTombstones()
+	{
+		return rangeTombstones.get();
+	}
+
+	/** @return true if one of the given tombstones removed the key of the given item: it covers the key,
+	 * and has a version in [version, myVer] - tombstones without a version (or frozen) are ignored */
+	protected final boolean isRangeRemoved(RangeTombstone<K> tombstones, int orderIndex, int version, int myVer)
+	{
+		for (RangeTombstone<K> t = tombstones; t != null; t = t.next)
+		{
+			int tombstoneVer = t.version.get();
+			if ((tombstoneVer > FREEZE_VERSION) && (tombstoneVer >= version) && (tombstoneVer <= myVer) &&
+					(compareKey(orderIndex, t.min) >= 0) && (compareKey(orderIndex, t.max) <= 0))
+				return true;
+		}
+
+		return false;
 	}
 
 	public void debugCalcCounters(DebugStats ds) {
 		ItemsIterator iter = itemsIterator();
 		ds.sortedCells += sortedCount;
-		ds.occupiedCells += orderIndex.get()/ORDER_SIZE;
+		if (bloom != null)
+			ds.bloomFalsePositiveRate += bloom.estimateFalsePositiveRate();
+		ds.occupiedCells += orderIndex.get()/orderSize;
 
 		int curr = NONE;
 		int prev = NONE;
@@ -245,7 +763,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			prevDataId = currDataId;
 			currDataId = get(curr, OFFSET_DATA);
 
-			if (prev + ORDER_SIZE != curr)
+			if (prev + orderSize != curr)
 				ds.jumpKeyCount++;
 
 			if (Math.abs(prevDataId) + DATA_SIZE != Math.abs(currDataId))
@@ -280,6 +798,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	public class Statistics
 	{
 		private AtomicInteger dupsCount = new AtomicInteger(0);
+		private AtomicInteger copiedCount = new AtomicInteger(0);
+		private AtomicInteger insertsCount = new AtomicInteger(0);
+		private AtomicInteger tombstonesCount = new AtomicInteger(0);
+		private AtomicInteger overwritesCount = new AtomicInteger(0);
 		/***
 		 *
 		 * @return Maximum number of items the chunk can hold
@@ -295,7 +817,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
          */
 		public int getFilledCount()
 		{
-			return Chunk.this.orderIndex.get()/Chunk.this.ORDER_SIZE;
+			return Chunk.this.orderIndex.get()/Chunk.this.orderSize;
 		}
 
 		/***
@@ -316,6 +838,63 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		{
 			return dupsCount.get();
 		}
+
+		/***
+		 * Counts keys copied into the chunk by compaction - all non-removed.
+		 */
+		public void countCopied(int keys)
+		{
+			copiedCount.addAndGet(keys);
+		}
+
+		/***
+		 * Counts a new visible version of a key: an insert (of a key that was missing or removed),
+		 * a tombstone (removal of a non-removed key) or an overwrite (of a non-removed key).
+		 * @param wasLive true if the key was in the chunk and not removed before the new version
+		 * @param isLive false if the new version is a removal
+		 */
+		public void countReplace(boolean wasLive, boolean isLive)
+		{
+			if (wasLive && isLive)
+				overwritesCount.incrementAndGet();
+			else if (isLive)
+				insertsCount.incrementAndGet();
+			else if (wasLive)
+				tombstonesCount.incrementAndGet();
+		}
+
+		/***
+		 * Counts keys removed by a range tombstone (see Chunk.countRangeRemoved) - as tombstones of single keys.
+		 */
+		public void countRangeRemoved(int keys)
+		{
+			tombstonesCount.addAndGet(keys);
+		}
+
+		/***
+		 *
+		 * @return Approximate number of non-removed keys in the chunk - exact when no puts or range removals
+		 * are in progress (a range removal is counted once its tombstone has a version)
+		 */
+		public int getLiveCount()
+		{
+			return copiedCount.get() + insertsCount.get() - tombstonesCount.get();
+		}
+
+		public int getInsertsCount()
+		{
+			return insertsCount.get();
+		}
+
+		public int getTombstonesCount()
+		{
+			return tombstonesCount.get();
+		}
+
+		public int getOverwritesCount()
+		{
+			return overwritesCount.get();
+		}
 	}
 
 	/***************	Constructors		***************/
@@ -325,19 +904,43 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * @param dataItemSize	expected avg. size (in BYTES!) of items in data-array. can be an estimate
 	 */
 	public Chunk(K minKey, int dataItemSize, Chunk<K,V> creator)
+	{
+		this(minKey, dataItemSize, creator, ORDER_SIZE, true, true);
+	}
+
+	/**
+	 * Create a new chunk
+	 * @param orderSize		# of fields in each item of order array - fields beyond ORDER_SIZE are
+	 * 						available to the subclass (e.g., for keys wider than an int)
+	 * @param orderOnHeap	if false, order array is not allocated - the subclass keeps it elsewhere
+	 * 						and must override get/set/cas
+	 * @param dataOnHeap	if false, data array is not allocated - the subclass keeps it elsewhere
+	 * 						and must override all data access methods
+	 */
+	protected Chunk(K minKey, int dataItemSize, Chunk<K,V> creator, int orderSize, boolean orderOnHeap, boolean dataOnHeap)
 	{
 
 		// allocate space for head item (only "next", starts pointing to NONE==0)
 		this.orderIndex = new AtomicInteger(FIRST_ITEM);
 		this.dataIndex = new AtomicInteger(FIRST_ITEM);	// index 0 in data is "NONE"
+		this.pendingPuts = new AtomicInteger(0);
 		this.orderIndexSerial = FIRST_ITEM;
 		this.dataIndexSerial = FIRST_ITEM;
 
 		// allocate space for MAX_ITEMS, and add FIRST_ITEM (size of head) for order array
 		//this.orderArray = new AtomicIntegerArray(MAX_ITEMS * ORDER_SIZE + FIRST_ITEM);	// initialized to 0, i.e., NONE
-		this.orderArray = new int[MAX_ITEMS * ORDER_SIZE + FIRST_ITEM];
-		this.dataArray = new Object[MAX_ITEMS+ 1];
-		this.putArray = new PutData[KiWi.MAX_THREADS * (PAD_SIZE + 1)];
+		this.orderSize = orderSize;
+		this.orderCapacity = MAX_ITEMS * orderSize + FIRST_ITEM;
+		this.dataCapacity = MAX_ITEMS + 1;
+		this.orderArray = orderOnHeap ? new int[orderCapacity] : null;
+		this.dataArray = dataOnHeap ? new Object[dataCapacity] : null;
+		this.bloom = (BLOOM_BITS_PER_ITEM > 0) ? new BloomFilter(MAX_ITEMS, BLOOM_BITS_PER_ITEM) : null;
+
+		// ~1/4 of the items get a tower - tower 0 is the head (the head node at all levels)
+		this.towerSize = EXPRESS_LEVELS + 1;
+		this.expressArray = (EXPRESS_LEVELS > 0) ? new int[(MAX_ITEMS / 3 + 1) * towerSize] : null;
+		this.expressIndex = new AtomicInteger(towerSize);
+		this.rangeTombstones = new AtomicReference<>(null);
 
 		this.children = new AtomicReference<>(null);
 
@@ -370,6 +973,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	public abstract int				allocate(K key, V data);
 	public abstract int 			allocateSerial(int key, V data);
 
+	/** allocates count items at once, for keys & values starting at from - see baseAllocateRun()
+	 * @return index of the first allocated item (the rest follow it), or -1 if they don't fit in the chunk */
+	public abstract int				allocateRun(K[] keys, V[] values, int from, int count);
+
 
 	public abstract K				readKey(int orderIndex);
 	public abstract Object readData(int orderIndex, int dataIndex);
@@ -377,6 +984,27 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	/** should CLONE minKey as needed */
 	public abstract Chunk<K,V>	newChunk(K minKey);
 
+	/** same as allocate(), for a chunk which is filled by a single thread before it's published (see appendItem).
+	 * chunks which keep items in storage beyond the order & data arrays (e.g., ChunkCell's slab) grow it, so
+	 * that at most fillFactor of it is used - the rest is left for puts once the chunk is published
+	 * @return index of allocated order-array item, or -1 if the order or data array is full */
+	protected int allocateAppended(K key, V value, double fillFactor)
+	{
+		return allocate(key, value);
+	}
+
+	/** releases resources held outside the java heap. called once, after the chunk was frozen, compacted
+	 * and replaced in the chunks list - concurrent readers may still hold a reference to it */
+	public void release()
+	{
+	}
+
+	/** frees resources held outside the java heap right away - the chunk must no longer be used by any
+	 * operation (see KiWi.close) */
+	public void free()
+	{
+	}
+
 	/***************	Methods				***************/
 
 	public void finishSerialAllocation()
@@ -515,14 +1143,107 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		orderArray[item+offset] = value;
 	}
 
+	/** writes data into given cell of data-array */
+	protected void writeData(int di, V data)
+	{
+		dataArray[di] = data;
+	}
+
+	/** copies 'length' consecutive cells of data-array, starting at 'di', into result array (starting at 'idx') */
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		if (length == 1)
+			((Object[]) result)[idx] = dataArray[di];
+		else
+			System.arraycopy(dataArray, di, result, idx, length);
+	}
+
+	/** adds 'length' consecutive cells of data-array, starting at 'di', to given aggregate (values must be numbers).
+	 * implementing classes may override it to read values without boxing */
+	protected void aggregateDataRange(int di, Aggregate aggregate, int length)
+	{
+		for (int i = 0; i < length; ++i)
+			aggregate.add(((Number) readData(NONE, di + i)).longValue());
+	}
+
+	/** copies 'length' consecutive cells of srcChunk's data-array (starting at 'srcDi') into this chunk's data-array */
+	protected void copyData(Chunk<K,V> srcChunk, int srcDi, int di, int length)
+	{
+		if (length == 1)
+			dataArray[di] = srcChunk.dataArray[srcDi];
+		else
+			System.arraycopy(srcChunk.dataArray, srcDi, dataArray, di, length);
+	}
+
 	/** performs CAS from 'expected' to 'value' for field at specified offset of given item */
-	private boolean cas(int item, int offset, int expected, int value)
+	protected boolean cas(int item, int offset, int expected, int value)
 	{
 		return unsafe.compareAndSwapInt(orderArray,
 			Unsafe.ARRAY_INT_BASE_OFFSET + (item + offset) * Unsafe.ARRAY_INT_INDEX_SCALE,
 			expected, value);
 	}
 	
+	/** compares the key of given item with 'key' - implementing classes may override it
+	 * to compare directly against the order/data arrays, without creating a key object */
+	protected int compareKey(int orderIndex, K key)
+	{
+		return readKey(orderIndex).compareTo(key);
+	}
+
+	/** compares the keys of the two given items - implementing classes may override it
+	 * to compare directly against the order/data arrays, without creating key objects */
+	protected int compareItems(int orderIndex1, int orderIndex2)
+	{
+		return readKey(orderIndex1).compareTo(readKey(orderIndex2));
+	}
+
+	/** checks whether the two given items have the same key */
+	protected boolean equalKeys(int orderIndex1, int orderIndex2)
+	{
+		return readKey(orderIndex1).compareTo(readKey(orderIndex2)) == 0;
+	}
+
+	/** @return hash of given key - must equal itemKeyHash() of an item with an equal key */
+	protected int keyHash(K key)
+	{
+		return key.hashCode();
+	}
+
+	/** @return hash of the key of given item - implementing classes may override it
+	 * to hash directly from the order/data arrays, without creating a key object */
+	protected int itemKeyHash(int orderIndex)
+	{
+		return readKey(orderIndex).hashCode();
+	}
+
+	/** adds the key of given item to the chunk's bloom filter - must be done before the item can be found
+	 * (i.e., before it's published or linked), so that the filter never misses a key of the chunk */
+	public final void addToBloom(int orderIndex)
+	{
+		if (bloom != null)
+			bloom.add(itemKeyHash(orderIndex));
+	}
+
+	/** same as addToBloom(), for all items of a run */
+	public final void addToBloom(PutData<K,V> run)
+	{
+		if (bloom != null)
+			for (int i = 0, oi = run.orderIndex; i < run.count; ++i, oi += orderSize)
+				bloom.add(itemKeyHash(oi));
+	}
+
+	/** @return false if no item with given key was ever allocated in this chunk (so get can skip it) */
+	public final boolean mightContain(K key)
+	{
+		return (bloom == null) || bloom.mightContain(keyHash(key));
+	}
+
+	/** copies the key of srcChunk's item (srcChunk must be of the same class) into given item of this chunk */
+	protected void copyKey(Chunk<K,V> srcChunk, int srcOi, int oi)
+	{
+		set(oi, OFFSET_KEY, srcChunk.get(srcOi, OFFSET_KEY));
+	}
+
 	/** binary search for largest-entry smaller than 'key' in sorted part of order-array.
 	 * @return the index of the entry from which to start a linear search -
 	 * if key is found, its previous entry is returned! */
@@ -530,7 +1251,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	{
 		// if there are no sorted keys,or the first item is already larger than key -
 		// return the head node for a regular linear search
-		if ((sortedCount == 0) || (readKey(FIRST_ITEM).compareTo(key) >= 0))
+		if ((sortedCount == 0) || (compareKey(FIRST_ITEM, key) >= 0))
 			return HEAD_NODE;
 		
 		// TODO check last key to avoid binary search?
@@ -542,13 +1263,132 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		{
 			int curr = start + (end - start) / 2;
 			
-			if (readKey(curr * ORDER_SIZE + FIRST_ITEM).compareTo(key) >= 0)
+			if (compareKey(curr * orderSize + FIRST_ITEM, key) >= 0)
 				end = curr;
 			else
 				start = curr;
 		}
 		
-		return start * ORDER_SIZE + FIRST_ITEM;
+		return start * orderSize + FIRST_ITEM;
+	}
+
+	/** finds a linked item smaller than 'key' from which to start a linear search - the closer of the entry
+	 * found by binary search in the sorted part, and the entry found by the express index over the rest */
+	private int findStart(K key)
+	{
+		int start = binaryFind(key);
+		if (expressArray == null)
+			return start;
+
+		// if no item was added between start and the next sorted item, the search ends right after start
+		int nextSorted = (start == HEAD_NODE) ? FIRST_ITEM : start + orderSize;
+		if ((nextSorted < sortedCount * orderSize + FIRST_ITEM) && (get(start, OFFSET_NEXT) == nextSorted))
+			return start;
+
+		int express = expressFind(key);
+		if (express == HEAD_NODE)
+			return start;
+		if (start == HEAD_NODE)
+			return express;
+
+		return (compareItems(express, start) > 0) ? express : start;
+	}
+
+	/***************	Express index		***************/
+
+	/*
+	 * Items added to the list after the chunk was created (i.e., not in its sorted part) are indexed by a
+	 * skip-list of "express" towers. A tower holds an item's order index and its next tower at each level,
+	 * and level l links ~1/4^l of the items in key order. Items are never removed from a chunk's list,
+	 * so towers are only added (by the thread that linked the item) - any tower is a valid place to start
+	 * a search from, and a tower missing from some level only makes searches a bit longer.
+	 */
+
+	private int towerItem(int tower)
+	{
+		return expressArray[tower];
+	}
+	private int towerNext(int tower, int level)
+	{
+		return expressArray[tower + level];
+	}
+	private boolean casTowerNext(int tower, int level, int expected, int value)
+	{
+		return unsafe.compareAndSwapInt(expressArray,
+			Unsafe.ARRAY_INT_BASE_OFFSET + (tower + level) * Unsafe.ARRAY_INT_INDEX_SCALE,
+			expected, value);
+	}
+
+	/** @return the last indexed item smaller than 'key', or HEAD_NODE if there's none */
+	private int expressFind(K key)
+	{
+		int tower = 0;
+
+		for (int level = EXPRESS_LEVELS; level >= 1; --level)
+		{
+			int next = towerNext(tower, level);
+			while ((next != NONE) && (compareKey(towerItem(next), key) < 0))
+			{
+				tower = next;
+				next = towerNext(tower, level);
+			}
+		}
+
+		return towerItem(tower);
+	}
+
+	/** adds an express tower for given item, which was just linked to the list. the tower's height is random,
+	 * so only ~1/4 of the items get one (and none if the express array is full) */
+	private void addToExpress(int orderIndex)
+	{
+		if (expressArray == null)
+			return;
+
+		int height = 0;
+		for (int r = ThreadLocalRandom.current().nextInt(); (height < EXPRESS_LEVELS) && ((r & 3) == 0); r >>>= 2)
+			++height;
+
+		if (height == 0)
+			return;
+
+		int tower = expressIndex.getAndAdd(towerSize);
+		if (tower + towerSize > expressArray.length)
+			return;
+
+		expressArray[tower] = orderIndex;
+
+		// link tower bottom-up, so it's reachable from a higher level only after it's linked below it
+		for (int level = 1; level <= height; ++level)
+		{
+			// descend from the top to find tower's predecessor at this level
+			int pred = 0;
+			for (int l = EXPRESS_LEVELS; l >= level; --l)
+				pred = expressPred(pred, l, orderIndex);
+
+			while (true)
+			{
+				int next = towerNext(pred, level);
+				expressArray[tower + level] = next;
+
+				if (casTowerNext(pred, level, next, tower))
+					break;
+
+				// some tower was linked after pred - continue searching from pred
+				pred = expressPred(pred, level, orderIndex);
+			}
+		}
+	}
+
+	/** @return the last tower at given level (starting from 'tower') whose item is smaller than given item */
+	private int expressPred(int tower, int level, int orderIndex)
+	{
+		int next = towerNext(tower, level);
+		while ((next != NONE) && (compareItems(towerItem(next), orderIndex) < 0))
+		{
+			tower = next;
+			next = towerNext(tower, level);
+		}
+		return tower;
 	}
 
 	/***
@@ -626,20 +1466,30 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		int numItems = 0;
 
 		// prevent new puts to the chunk
-		orderIndex.addAndGet(orderArray.length);
+		orderIndex.addAndGet(orderCapacity);
+
+		// range removals without a version are frozen too - they're added again to the rebalanced chunks
+		helpRangeTombstones(FREEZE_VERSION);
+
+		// no pending puts to help (puts published later see the chunk is frozen)
+		if (!hasPendingPuts())
+			return;
 
 		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i) {
-			// make sure data is for a Put operatio
-			PutData<K, V> currPut = putArray[pad(i)];
+		for (int i = 0, n = ThreadSlots.bound(); i < n; ++i) {
+			// make sure data is for a Put operation into this chunk
+			PutData<K, V> currPut = readPut(i);
 			if (currPut == null)
 				continue;
-/*
-			if(currPut.chunk != this)
+
+			// a run is frozen as a whole - or, if it has a version, all of its items are added to the list
+			if (currPut.isRun())
 			{
+				if (setRunVersion(currPut, FREEZE_VERSION) != FREEZE_VERSION)
+					linkRun(currPut, null, 0);
 				continue;
 			}
-*/
+
 			int idx = currPut.orderIndex;
 			int version = getVersion(idx);
 
@@ -661,7 +1511,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				// if we reached here then item has a version - we need to help by adding item to chunk's list
 				// we need to help the pending put operation add itself to the list before proceeding
 				// to make sure a frozen chunk is actually frozen - all items are fully added
-				addToList(idx, readKey(idx));
+				addToList(idx, readKey(idx), currPut.expected);
 
 			}
 		}
@@ -673,17 +1523,15 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * returns NONE if no such key exists */
 	public int findFirst(K minKey, int version)
 	{
-		// binary search sorted part of order-array to quickly find node to start search at
+		// binary search sorted part of order-array (and express index) to quickly find node to start search at
 		// it finds previous-to-key so start with its next
-		int curr = get(binaryFind(minKey), OFFSET_NEXT);
+		int curr = get(findStart(minKey), OFFSET_NEXT);
 		
 		// iterate until end of list (or key is found)
 		while (curr != NONE)
 		{
-			K key = readKey(curr);
-
 			// if item's key is larger or equal than min - we've found a matching key
-			if (key.compareTo(minKey) >= 0)
+			if (compareKey(curr, minKey) >= 0)
 			{
 				// check for valid version
 				if (getVersion(curr) <= version)
@@ -724,10 +1572,8 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		
 		while (curr != NONE)
 		{
-			K currKey = readKey(curr);
-			
 			// if in a valid version, and a different key - found next item
-			if ((currKey.compareTo(key) != 0) && (getVersion(curr) <= version))
+			if ((compareKey(curr, key) != 0) && (getVersion(curr) <= version))
 			{
 				return curr;
 			}
@@ -742,20 +1588,72 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	/** finds and returns the value for the given key, or 'null' if no such key exists */
 	public V find(K key, PutData<K,V> item)
 	{
-		// binary search sorted part of order-array to quickly find node to start search at
+		int oi = findItem(key, item);
+
+		return ((oi == NONE) || isRangeRemoved(oi)) ? null : getData(oi);
+	}
+
+	/** same as find(), for keys[from..to) which are sorted and fall into this chunk - each key is searched for
+	 * from the last item before the previous key (or from the chunk's index, if it gets closer to the key),
+	 * so the keys are found in one pass over the chunk's list
+	 * @param items newest pending put of each key (see helpPutInGet(myVersion, min, max))
+	 * @param result the value of keys[i] is set in result[i] - null if the key doesn't exist */
+	public void findAll(K[] keys, int from, int to, SortedMap<K,PutData<K,V>> items, V[] result)
+	{
+		int prev = HEAD_NODE;
+
+		for (int i = from; i < to; ++i)
+		{
+			K key = keys[i];
+			result[i] = null;
+
+			// key was never put in chunk - it can't be found there (nor in a pending put)
+			if (!mightContain(key))
+				continue;
+
+			int start = findStart(key);
+			if ((prev != HEAD_NODE) && ((start == HEAD_NODE) || (compareItems(prev, start) > 0)))
+				start = prev;
+
+			// iterate until key is found, or exceeded - items before key also precede the next keys
+			int curr = get(start, OFFSET_NEXT);
+			while (curr != NONE)
+			{
+				int cmp = compareKey(curr, key);
+				if (cmp > 0)
+					break;
+
+				if (cmp == 0)
+				{
+					int item = chooseNewer(curr, items.get(key));
+					result[i] = isRangeRemoved(item) ? null : getData(item);
+					break;
+				}
+
+				prev = curr;
+				curr = get(curr, OFFSET_NEXT);
+			}
+		}
+	}
+
+	/** finds the newest item for the given key (either in the list or the given pending put)
+	 * @return index of the item in order-array, or NONE if no such key exists */
+	public int findItem(K key, PutData<K,V> item)
+	{
+		// binary search sorted part of order-array (and express index) to quickly find node to start search at
 		// it finds previous-to-key so start with its next
-		int curr = get(binaryFind(key), OFFSET_NEXT);
+		int curr = get(findStart(key), OFFSET_NEXT);
 
 		// iterate until end of list (or key is found)
 		while (curr != NONE)
 		{
 			// compare current item's key to searched key
-			int cmp = readKey(curr).compareTo(key);
+			int cmp = compareKey(curr, key);
 			
 			// if item's key is larger - we've exceeded our key
 			// it's not in chunk - no need to search further
 			if (cmp > 0)
-				return null;
+				return NONE;
 			// if keys are equal - we've found the item
 			else if (cmp == 0)
 				return chooseNewer(curr, item);
@@ -764,10 +1662,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				curr = get(curr, OFFSET_NEXT);
 		}
 		
-		return null;
+		return NONE;
 	}
 	
-	private V chooseNewer(int item, PutData<K,V> pd)
+	private int chooseNewer(int item, PutData<K,V> pd)
 	{
 		// if pd is empty or in different chunk, then item is definitely newer
 		// it's true since put() publishes after finding a chunk, and get() finds chunk only after reading thread-array
@@ -775,28 +1673,70 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		if ((pd == null)
 				//|| (pd.chunk != this)
 				)
-			return getData(item);
+			return item;
 		
 		// if same chunk then regular comparison (version, then orderIndex)
 		int itemVer = getVersion(item);
 		int dataVer = getVersion(pd.orderIndex);
 
 		if (itemVer > dataVer)
-			return getData(item);
+			return item;
 		else if (dataVer > itemVer)
-			return getData(pd.orderIndex);
+			return pd.orderIndex;
 		else
 			// same version - return latest item by order in order-array
-			return getData(Math.max(item, pd.orderIndex));
+			return Math.max(item, pd.orderIndex);
 	}
 	
 	/** add the given item (allocated in this chunk) to the chunk's linked list
 	 * @param orderIndex index of item in order-array
-	 * @param key given for convenience */
-	public final void addToList(final int orderIndex, K key)
+	 * @param key given for convenience
+	 * @return data index of the previous version of the key (the version right after the item in the list),
+	 * 			negative if it was removed, or NONE if there's none */
+	public final int addToList(final int orderIndex, K key)
+	{
+		return addToList(orderIndex, key, PutData.UNCONDITIONAL);
+	}
+
+	/** same as addToList(orderIndex, key) - but if expected isn't UNCONDITIONAL, the item is linked only if it's
+	 * the key's newest version and the version after it has the expected data index (NONE if there's none).
+	 * otherwise the item is canceled (see isCanceled()). all threads helping the item decide alike: a linking
+	 * thread first claims the item's position (by setting its next), and a claimed position is always linked
+	 * unless an item was since added there, in which case the claim fails anyway.
+	 * the item must be marked with setConditional() before it's published */
+	public final int addToList(final int orderIndex, K key, final int expected)
+	{
+		return addToList(orderIndex, key, expected, -1);
+	}
+
+	/** adds all items of a run (which have the run's version, see setRunVersion()) to the chunk's list in one pass -
+	 * the run is sorted by key, so each item is searched for from the item before it (or from the chunk's index,
+	 * if it gets closer to the item's key)
+	 * @param keys keys of the run's items, starting at from - or null to read them from the chunk */
+	public final void linkRun(PutData<K,V> run, K[] keys, int from)
+	{
+		int prevItem = HEAD_NODE;
+
+		for (int i = 0, oi = run.orderIndex; i < run.count; ++i, oi += orderSize)
+		{
+			K key = (keys != null) ? keys[from + i] : readKey(oi);
+
+			int start = findStart(key);
+			if ((prevItem != HEAD_NODE) && ((start == HEAD_NODE) || (compareItems(prevItem, start) > 0)))
+				start = prevItem;
+
+			addToList(oi, key, PutData.UNCONDITIONAL, start);
+
+			// a linked item precedes the next item's key (unless it only replaced the data of an existing item)
+			if (get(oi, OFFSET_VERSION) > 0)
+				prevItem = oi;
+		}
+	}
+
+	/** @param ancor item to start searching from - its key must precede key (-1 to search the chunk's index) */
+	private int addToList(final int orderIndex, K key, final int expected, int ancor)
 	{
 		int prev, curr;
-		int ancor = -1;
 
 		// retry adding to list until successful
 		// no items are removed from list - so we don't need to restart on failures
@@ -807,11 +1747,12 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			// remember next pointer in entry we're trying to add
 			int savedNext = get(orderIndex, OFFSET_NEXT);
 			
-			 // start iterating from quickly-found node (by binary search) in sorted part of order-array
-			if(ancor == -1) ancor = binaryFind(key);
+			 // start iterating from quickly-found node (by binary search in sorted part of order-array, or express index)
+			if(ancor == -1) ancor = findStart(key);
 			curr = ancor;
 
 			int cmp = -1;
+			boolean newest = true;	// false if list holds a newer version of the key - so mine isn't visible
 
 			// iterate items until key's position is found
 			while (true)
@@ -825,11 +1766,11 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				
 				// if found item we're trying to insert - already inserted by someone else, so we're done
 				if (curr == orderIndex)
-					return;
+					return previousData(orderIndex);
 					//TODO also update version to positive?
 				
 				// compare current item's key to ours
-				cmp = readKey(curr).compareTo(key);
+				cmp = compareKey(curr, key);
 				
 				// if current item's key is larger, done searching - add between prev and curr
 				if (cmp > 0)
@@ -840,36 +1781,60 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				{
 					// if duplicate values aren't allowed - do not add value
 					if (!ALLOW_DUPS) {
-						return;
+						return get(curr, OFFSET_DATA);
 					}
 
 					int verMine = getVersion(orderIndex);
 					int verNext = getVersion(curr);
 					
 					// if current item's version is smaller, done searching - larger versions are first in list
-					if (verNext < verMine)
+					// (a conditional item is placed before older items of its own version - earlier in chunk's array -
+					//  rather than replacing their data)
+					if ((verNext < verMine) || ((verNext == verMine) && (expected != PutData.UNCONDITIONAL) && (curr < orderIndex)))
 						break;
 					
 					// same versions but i'm later in chunk's array - i'm first in list
-					if (verNext == verMine)
+					if ((verNext == verMine) && (expected == PutData.UNCONDITIONAL))
 					{
 						int newDataIdx = get(orderIndex, OFFSET_DATA);
 						int oldDataIdx = get(curr, OFFSET_DATA);
 
-						while((Math.abs(newDataIdx) > Math.abs(oldDataIdx)) && !cas(curr,OFFSET_DATA,oldDataIdx, newDataIdx)) {
+						// my data replaces the item's data - which is the previous version
+						while (Math.abs(newDataIdx) > Math.abs(oldDataIdx)) {
+							if (cas(curr, OFFSET_DATA, oldDataIdx, newDataIdx)) {
+								if (newest)
+									statistics.countReplace(isLive(curr, oldDataIdx, verMine), newDataIdx > 0);
+								return oldDataIdx;
+							}
 							oldDataIdx = get(curr,OFFSET_DATA);
 						}
 
-						return;
+						// a put later in the array already set newer data - my data is never seen, so the current
+						// value is returned as if it replaced mine (unless it's mine, set by a helper)
+						return (oldDataIdx == newDataIdx) ? NONE : oldDataIdx;
 					}
+
+					newest = false;
 				}
 			}
 
-			if(savedNext == CANCELED_REMOVE_NEXT) return;
-			if(cmp != 0 && savedNext == NONE && get(orderIndex, OFFSET_DATA) < 0)
+			// removing a key which isn't in the chunk - the remove is canceled, there's no previous version
+			if(savedNext == CANCELED_REMOVE_NEXT) return NONE;
+			if(expected == PutData.UNCONDITIONAL && cmp != 0 && savedNext == NONE && get(orderIndex, OFFSET_DATA) < 0)
 			{
 				if(cas(orderIndex,OFFSET_NEXT,savedNext, CANCELED_REMOVE_NEXT))
-					return;
+					return NONE;
+				else
+					continue;
+			}
+
+			// conditional item whose previous version isn't the expected one - cancel it (unless its position
+			// is already claimed). the canceling CAS fails if another thread claims a position meanwhile
+			if ((expected != PutData.UNCONDITIONAL) && (savedNext != curr) &&
+					!(newest && ((cmp == 0) ? (get(curr, OFFSET_DATA) == expected) : (expected == NONE))))
+			{
+				if (cas(orderIndex, OFFSET_NEXT, savedNext, CANCELED_REMOVE_NEXT))
+					return NONE;
 				else
 					continue;
 			}
@@ -887,16 +1852,56 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					// update version to positive (getVersion() always returns positive number) to mark item is linked
 					set(orderIndex, OFFSET_VERSION, getVersion(orderIndex));
 
+					// index item so later searches can skip to it
+					addToExpress(orderIndex);
+
 					// if adding version for existing key -- update duplicates statistics
 					if(cmp == 0)
 					{
 						statistics.incrementDuplicates();
 					}
 
+					// update live-keys statistics, if the new version is the visible one
+					if (newest)
+						statistics.countReplace((cmp == 0) && isLive(curr, get(curr, OFFSET_DATA), getVersion(orderIndex)),
+								get(orderIndex, OFFSET_DATA) > 0);
+
 					break;
 				}
 			}
 		}
+
+		return previousData(orderIndex);
+	}
+
+	/** marks a newly allocated item as conditional - its position is not claimed yet */
+	public final void setConditional(int orderIndex)
+	{
+		set(orderIndex, OFFSET_NEXT, UNCLAIMED_NEXT);
+	}
+
+	/** @return true if the item was canceled - a removal of a missing key, or a conditional item whose
+	 * expected previous version wasn't current */
+	public final boolean isCanceled(int orderIndex)
+	{
+		return get(orderIndex, OFFSET_NEXT) == CANCELED_REMOVE_NEXT;
+	}
+
+	/** @return data index of the given item - negative if it's a removal */
+	public final int getDataIndex(int orderIndex)
+	{
+		return get(orderIndex, OFFSET_DATA);
+	}
+
+	/** @return data index of the item after given (linked) item, if it's a version of the same key - NONE otherwise */
+	private int previousData(int orderIndex)
+	{
+		int next = get(orderIndex, OFFSET_NEXT);
+
+		if ((next == NONE) || (next == CANCELED_REMOVE_NEXT) || (compareItems(orderIndex, next) != 0))
+			return NONE;
+
+		return get(next, OFFSET_DATA);
 	}
 
 	private boolean casData(int curr, Object currData, Object data) {
@@ -920,15 +1925,56 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	{
 		int oiDest = allocateSerial(key,value);
 
+		linkAppendedItem(oiDest, version);
+	}
+
+	/***
+	 * Same as appendItem, for keys of any type - for a chunk which is filled by a single thread before
+	 * it's published (see BulkLoader). Items must be appended in increasing key order.
+	 *
+	 * @param fillFactor fraction of the chunk's extra storage (see allocateAppended) to fill
+	 * @return false if the item doesn't fit in the chunk (then nothing is appended)
+	 */
+	public final boolean appendItem(K key, V value, int version, double fillFactor)
+	{
+		int oiDest = allocateAppended(key, value, fillFactor);
+		if (oiDest < 0)
+			return false;
+
+		linkAppendedItem(oiDest, version);
+		return true;
+	}
+
+	/***
+	 * Same as appendItem, but copies the key of an item of srcChunk (which must be of the same class).
+	 *
+	 * @param srcChunk the chunk holding the key of the new item
+	 * @param srcOi index of the item holding the key in srcChunk's order array
+     */
+	private void appendItem(Chunk<K,V> srcChunk, int srcOi, V value, int version)
+	{
+		int oiDest = baseAllocateSerial(value == null ? 0 : 1);
+
+		copyKey(srcChunk, srcOi, oiDest);
+		if(value != null) {
+			writeData(get(oiDest, OFFSET_DATA), value);
+		}
+
+		linkAppendedItem(oiDest, version);
+	}
+
+	private void linkAppendedItem(int oiDest, int version)
+	{
 		// update to item's version (since allocation gives NONE version)
 		// version is positive so item is marked as linked
 		set(oiDest, Chunk.OFFSET_VERSION, version);
+		addToBloom(oiDest);
 
 		// update binary searches range
 		sortedCount++;
 
 		// handle adding of first item to empty chunk
-		int prev = oiDest - ORDER_SIZE;
+		int prev = oiDest - orderSize;
 		if(prev < 0) {
 			set(HEAD_NODE,OFFSET_NEXT,oiDest);
 			return;
@@ -941,12 +1987,12 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 	public int getNumOfItems()
 	{
-		return orderIndex.get()/ORDER_SIZE;
+		return orderIndex.get()/orderSize;
 	}
 
 	public final int getNumOfItemsSerial()
 	{
-		return orderIndexSerial/ORDER_SIZE;
+		return orderIndexSerial/orderSize;
 	}
 
 	/***
@@ -958,28 +2004,26 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
      */
 	public final int copyPart(Chunk<K,V> srcChunk, int oi, int maxCapacity, ScanIndex<K> scanIndex)
 	{
+		// items removed by a range tombstone no scan needs to skip are dropped, like removed keys
+		RangeTombstone<K> applied = carryRangeTombstones(srcChunk, scanIndex);
 
-
-		int maxIdx = maxCapacity*ORDER_SIZE + 1;
+		int maxIdx = maxCapacity*orderSize + 1;
 
 		if(orderIndexSerial >= maxIdx) return oi;
 
-		assert oi < orderArray.length - ORDER_SIZE;
+		assert oi < orderCapacity - orderSize;
 
 		if(orderIndexSerial != FIRST_ITEM) {
-			set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
+			set(orderIndexSerial - orderSize, OFFSET_NEXT, orderIndexSerial);
 		} else
 		{
 			set(HEAD_NODE,OFFSET_NEXT,FIRST_ITEM);
 		}
 
-		int sortedSize = srcChunk.sortedCount*ORDER_SIZE + 1;
+		int sortedSize = srcChunk.sortedCount*orderSize + 1;
 		int orderStart = oi;
 		int orderEnd = orderStart - 1;
 
-		int currKey = NONE;
-		int prevKey = Integer.MIN_VALUE;
-
 		int currDataId = NONE;
 		int prevDataId = NONE;
 
@@ -991,8 +2035,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 		while(true)
 		{
-			currKey = srcChunk.get(oi,OFFSET_KEY);
-			currDataId = srcChunk.get(oi, OFFSET_DATA);
+			currDataId = srcChunk.dataToCopy(oi, applied);
 
 			int itemsToCopy = orderEnd - orderStart + 1;
 
@@ -1002,19 +2045,18 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 						(
 								(oiPrev < sortedSize)
 										&&
-								(prevKey != currKey)
-										&&
-								(oiPrev + ORDER_SIZE == oi)
+								(oiPrev + orderSize == oi)
 										&&
-								(orderIndexSerial +itemsToCopy*ORDER_SIZE <= maxIdx)
+								(orderIndexSerial +itemsToCopy*orderSize <= maxIdx)
 									&&
 								(prevDataId + 1 == currDataId)
+										&&
+								!srcChunk.equalKeys(oiPrev, oi)
 						)))
 			{
 				orderEnd++;
 				isFirst = false;
 
-				prevKey = currKey;
 				oiPrev = oi;
 				oi = srcChunk.get(oi, OFFSET_NEXT);
 				prevDataId = currDataId;
@@ -1025,43 +2067,45 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 			// copy continuous interval by arrayCopy
 			itemsToCopy = orderEnd - orderStart + 1;
-			//System.arraycopy(srcChunk.orderArray, orderStart, orderArray, orderIndexSerial, itemsToCopy*ORDER_SIZE );
+			//System.arraycopy(srcChunk.orderArray, orderStart, orderArray, orderIndexSerial, itemsToCopy*orderSize );
 			if(itemsToCopy > 0) {
 				for (int i = 0; i < itemsToCopy; ++i) {
-					int offset = i * ORDER_SIZE;
-					int oIdx = orderIndexSerial;
+					int offset = i * orderSize;
+					int oIdx = orderIndexSerial + offset;
 
 					// next should point to the next item
-					orderArray[oIdx + offset + OFFSET_NEXT] = oIdx + offset + ORDER_SIZE;
-					orderArray[oIdx + offset + OFFSET_VERSION] = Math.abs(srcChunk.orderArray[orderStart + offset + OFFSET_VERSION]);
-					orderArray[oIdx + offset + OFFSET_DATA] = dataIndexSerial + i;
-					orderArray[oIdx + offset + OFFSET_KEY] = srcChunk.orderArray[orderStart + offset + OFFSET_KEY];
+					set(oIdx, OFFSET_NEXT, oIdx + orderSize);
+					set(oIdx, OFFSET_VERSION, srcChunk.getVersion(orderStart + offset));
+					set(oIdx, OFFSET_DATA, dataIndexSerial + i);
+					copyKey(srcChunk, orderStart + offset, oIdx);
+					addToBloom(oIdx);
 				}
 
-				orderIndexSerial = orderIndexSerial + itemsToCopy * ORDER_SIZE;
+				orderIndexSerial = orderIndexSerial + itemsToCopy * orderSize;
 
 				int dataIdx = srcChunk.get(orderStart, OFFSET_DATA);
 
-				if (itemsToCopy == 1) {
-					dataArray[dataIndexSerial] = srcChunk.dataArray[dataIdx];
-				} else {
-
-					System.arraycopy(srcChunk.dataArray, dataIdx, dataArray, dataIndexSerial, itemsToCopy);
-				}
+				copyData(srcChunk, dataIdx, dataIndexSerial, itemsToCopy);
 
 				dataIndexSerial = dataIndexSerial + itemsToCopy;
+
+				// each copied item is the newest version of a non-removed key - unless a tombstone carried over
+				// to this chunk removed it (it's copied for a pending scan, and isn't counted as live)
+				statistics.countCopied(itemsToCopy - countRangeRemoved(orderIndexSerial - itemsToCopy * orderSize,
+						itemsToCopy));
 			}
 
-			scanIndex.reset(currKey);
+			scanIndex.reset(srcChunk, oi);
 			//first item already copied or null
 			scanIndex.savedVersion(NONE);
 
 			currVersion = srcChunk.getVersion(oi);
 
 			int removedVersion = NONE;
+			boolean sameKey = (oi != NONE) && (oiPrev != NONE) && srcChunk.equalKeys(oiPrev, oi);
 
 			// the case when we start from deleted item
-			if(prevKey != currKey && currDataId < 0) {
+			if(oi != NONE && !sameKey && currDataId < 0) {
 				// remove the item if it doesn't have versions to keep
 				removedVersion = currVersion;
 
@@ -1070,15 +2114,14 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				prevDataId = currDataId;
 
 				oi = srcChunk.get(oi, OFFSET_NEXT);
-				currDataId = srcChunk.get(oi,OFFSET_DATA);
+				currDataId = srcChunk.dataToCopy(oi, applied);
 
 				currVersion = srcChunk.getVersion(oi);
-				prevKey = currKey;
-				currKey = srcChunk.get(oi, OFFSET_KEY);
+				sameKey = (oi != NONE) && srcChunk.equalKeys(oiPrev, oi);
 			}
 
 			// copy versions of currKey if required by scanIndex, or skip to next key
-			while (oi != NONE && prevKey == currKey )
+			while (sameKey)
 			{
 					if(scanIndex.shouldKeep(currVersion) )
 					{
@@ -1089,15 +2132,15 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 						}
 						else if(currVersion != removedVersion){
 							if (removedVersion != NONE) {
-								appendItem(currKey, null, removedVersion);
-								set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
+								appendItem(srcChunk, oi, null, removedVersion);
+								set(orderIndexSerial - orderSize, OFFSET_NEXT, orderIndexSerial);
 								scanIndex.savedVersion(removedVersion);
 								removedVersion = NONE;
 							}
 
 
-							appendItem(currKey, (V) srcChunk.dataArray[currDataId], currVersion);
-							set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
+							appendItem(srcChunk, oi, (V) srcChunk.readData(oi, currDataId), currVersion);
+							set(orderIndexSerial - orderSize, OFFSET_NEXT, orderIndexSerial);
 							scanIndex.savedVersion(currVersion);
 						}
 					}
@@ -1106,11 +2149,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					prevDataId = currDataId;
 
 					oi = srcChunk.get(oi, OFFSET_NEXT);
-					currDataId = srcChunk.get(oi,OFFSET_DATA);
+					currDataId = srcChunk.dataToCopy(oi, applied);
 
 					currVersion = srcChunk.getVersion(oi);
-					prevKey = currKey;
-					currKey = srcChunk.get(oi, OFFSET_KEY);
+					sameKey = (oi != NONE) && srcChunk.equalKeys(oiPrev, oi);
 			}
 
 			if(oi == NONE || orderIndexSerial > maxIdx)
@@ -1123,28 +2165,72 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		}
 
 
-		int setIdx = orderIndexSerial > FIRST_ITEM ? orderIndexSerial - ORDER_SIZE : HEAD_NODE;
+		int setIdx = orderIndexSerial > FIRST_ITEM ? orderIndexSerial - orderSize : HEAD_NODE;
 		set(setIdx,OFFSET_NEXT, NONE);
 
 		orderIndex.set(orderIndexSerial);
 		dataIndex.set(dataIndexSerial);
-		sortedCount = orderIndexSerial/ORDER_SIZE;
+		sortedCount = orderIndexSerial/orderSize;
 
 		return oi;
 	}
 
+	/** carries the range tombstones of srcChunk over to this (compacted) chunk - except frozen ones, which are
+	 * added again to the rebalanced chunks, and ones no pending scan is older than: those are applied instead
+	 * (the items they removed aren't copied), so they're no longer needed
+	 * @return tombstones to apply while copying items of srcChunk */
+	private RangeTombstone<K> carryRangeTombstones(Chunk<K,V> srcChunk, ScanIndex<K> scanIndex)
+	{
+		RangeTombstone<K> applied = null;
+
+		for (RangeTombstone<K> t = srcChunk.rangeTombstones.get(); t != null; t = t.next)
+		{
+			int version = t.version.get();
+			if (version <= FREEZE_VERSION)
+				continue;
+
+			if (!scanIndex.hasScanBefore(version, t.min, t.max))
+				applied = new RangeTombstone<>(t.min, t.max, t.version, applied);
+			else if (!hasRangeTombstone(t.version))
+				rangeTombstones.set(new RangeTombstone<>(t.min, t.max, t.version, rangeTombstones.get()));
+		}
+
+		return applied;
+	}
+
+	/** @return true if this chunk already has the tombstone of given version (carried from another chunk) */
+	private boolean hasRangeTombstone(AtomicInteger version)
+	{
+		for (RangeTombstone<K> t = rangeTombstones.get(); t != null; t = t.next)
+			if (t.version == version)
+				return true;
+
+		return false;
+	}
+
+	/** @return data index of the given item, for copyPart() - negative (as for a removal) if one of the
+	 * applied tombstones removed it */
+	private int dataToCopy(int orderIndex, RangeTombstone<K> applied)
+	{
+		int di = get(orderIndex, OFFSET_DATA);
+		if ((applied == null) || (orderIndex == NONE) || (di < 0))
+			return di;
+
+		return isRangeRemoved(applied, orderIndex, getVersion(orderIndex), Integer.MAX_VALUE) ? -di : di;
+	}
+
 	/** base allocate method for use in allocation by implementing classes
 	 * @return index of allocated order-array item (can be used to get data-array index) */
 	protected final int baseAllocate(int dataSize)
 	{
 		// increment order array to get new index in it
-		int oi = orderIndex.getAndAdd(ORDER_SIZE);
-		if (oi+ORDER_SIZE > orderArray.length)
+		int oi = orderIndex.getAndAdd(orderSize);
+		if (oi+orderSize > orderCapacity)
 			return -1;
 
 		// increment data array to get new index in it
 		int di = dataIndex.getAndIncrement();
-		if (di >= dataArray.length)
+		if (di >= dataCapacity)
 			return -1;
 
 		// if there's data - allocate room for it
@@ -1159,19 +2245,49 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return oi;
 	}
 
+	/** @return # of items (of count items with keys & values starting at from) that currently fit in the chunk -
+	 * i.e., that allocateRun() can allocate unless other puts allocate first. 0 if the chunk is full or frozen.
+	 * the run never takes the chunk's last item, since a chunk whose order-array is used up seems frozen */
+	public int fitRun(K[] keys, V[] values, int from, int count)
+	{
+		int freeItems = Math.min((orderCapacity - orderIndex.get() - 1) / orderSize, dataCapacity - dataIndex.get());
+		return Math.max(0, Math.min(count, freeItems));
+	}
+
+	/** same as baseAllocate(), for count items which are reserved together - consecutive in both arrays
+	 * @return index of first allocated order-array item */
+	protected final int baseAllocateRun(V[] values, int from, int count)
+	{
+		// reserve all order-array items at once
+		int oi = orderIndex.getAndAdd(count * orderSize);
+		if (oi + count * orderSize > orderCapacity)
+			return -1;
+
+		// reserve all data-array cells at once
+		int di = dataIndex.getAndAdd(count);
+		if (di + count > dataCapacity)
+			return -1;
+
+		// items without data (removals) get a negative data index, as in baseAllocate()
+		for (int i = 0; i < count; ++i)
+			set(oi + i * orderSize, OFFSET_DATA, (values[from + i] != null) ? di + i : -(di + i));
+
+		return oi;
+	}
+
 	protected final int baseAllocateSerial(int dataSize) {
 
 		int oi = orderIndexSerial;
-		orderIndexSerial += ORDER_SIZE;
+		orderIndexSerial += orderSize;
 
-		if (oi + ORDER_SIZE > orderArray.length)
+		if (oi + orderSize > orderCapacity)
 			return -1;
 
 		// if there's data - allocate room for it
 		// otherwise DATA field of order-item is left as NONE
 		// increment data array to get new index in it
 		int di = dataIndexSerial;
-		if (di >= dataArray.length)
+		if (di >= dataCapacity)
 			return -1;
 
 		di = dataSize > 0 ? di : -di;
@@ -1279,7 +2395,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			throw new IllegalStateException();
 		}
 
-		for(int oi = FIRST_ITEM + ORDER_SIZE; oi < orderArray.length - ORDER_SIZE; oi += ORDER_SIZE)
+		for(int oi = FIRST_ITEM + orderSize; oi < orderCapacity - orderSize; oi += orderSize)
 		{
 			int key = get(oi,OFFSET_KEY);
 			int version = get(oi, OFFSET_VERSION);
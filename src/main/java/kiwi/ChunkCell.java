@@ -2,50 +2,389 @@ package kiwi;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.util.Arrays;
 import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Chunk of variable-length (Cell) keys and values.
+ * Key and value bytes are copied into a per-chunk byte slab - the order array holds the key's offset & length
+ * in the slab (and the key's prefix, so most comparisons don't read the slab), and the data array is replaced
+ * by the offset & length of each value in the slab.
+ * Cells are created only when keys/values are read through the generic API.
+ */
 public class ChunkCell extends Chunk<Cell, Cell>
 {
-	private static final int DATA_SIZE = 100;		// average # of BYTES of item in data array (guesstimate)
-	
+	// order_size(7) = next + version + key (offset in slab) + data + key length + key prefix (high & low int)
+	private static final int		CELL_ORDER_SIZE = ORDER_SIZE + 3;
+	private static final int		OFFSET_KEY_LENGTH = ORDER_SIZE;
+	private static final int		OFFSET_PREFIX_HIGH = ORDER_SIZE + 1;
+	private static final int		OFFSET_PREFIX_LOW = ORDER_SIZE + 2;
+
+	private static final int		DATA_SIZE = 1;	// each value takes a single cell of the data array
+	public static int				ITEM_BYTES = 16;	// average # of BYTES of key & value of item in slab (guesstimate)
+
+	/** values copied by a scan - kept back to back in one byte array, rather than as a Cell per value */
+	public static final class ValueBuffer
+	{
+		private final byte[]	bytes;
+		private final int[]		ends;		// ends[i] is the offset right after the i-th value
+
+		public ValueBuffer(int bytesCapacity, int valuesCapacity)
+		{
+			this.bytes = new byte[bytesCapacity];
+			this.ends = new int[valuesCapacity];
+		}
+
+		public byte[] getBytes()
+		{
+			return bytes;
+		}
+		public int getOffset(int i)
+		{
+			return (i == 0) ? 0 : ends[i - 1];
+		}
+		public int getLength(int i)
+		{
+			return ends[i] - getOffset(i);
+		}
+
+		private void put(int i, byte[] src, int off, int len)
+		{
+			int start = getOffset(i);
+			System.arraycopy(src, off, bytes, start, len);
+			ends[i] = start + len;
+		}
+	}
+
+	private byte[]					slab;			// key & value bytes (replaced only while chunk is copied into)
+	private final AtomicInteger		slabIndex;		// points to next free byte of slab
+	private final int[]				valueOffsets;	// offset in slab of each value (replaces the data array of Chunk)
+	private final int[]				valueLengths;	// length of each value
+
 	public ChunkCell()
 	{
 		this(Cell.Empty, null);
 	}
 	public ChunkCell(Cell minKey, ChunkCell creator)
 	{
-		super(minKey, DATA_SIZE, creator);
+		super(minKey, DATA_SIZE, creator, CELL_ORDER_SIZE, true, false);
+
+		this.slab = new byte[slabCapacity()];
+		this.slabIndex = new AtomicInteger(0);
+		this.valueOffsets = new int[dataCapacity];
+		this.valueLengths = new int[dataCapacity];
 	}
 	@Override
 	public Chunk<Cell,Cell> newChunk(Cell minKey)
 	{
 		return new ChunkCell(minKey.clone(), this);
 	}
-	
-	
+
+	private static int slabCapacity()
+	{
+		return MAX_ITEMS * ITEM_BYTES;
+	}
+
+	/** reserves room in slab for a new item - fails (returns -1) if the slab is full, so the chunk is rebalanced */
+	private int reserve(int length)
+	{
+		if (slabIndex.get() + length > slab.length)
+			return -1;
+
+		int off = slabIndex.getAndAdd(length);
+		return (off + length <= slab.length) ? off : -1;
+	}
+
+	/** reserves room in slab while the chunk is copied into (before it is published), growing the slab if needed.
+	 * at least half of the slab is kept free, so the new chunk has room for puts once it is published */
+	private int reserveSerial(int length)
+	{
+		return reserveSerial(length, 0.5);
+	}
+
+	/** same as reserveSerial(length), keeping at least (1 - fillFactor) of the slab free */
+	private int reserveSerial(int length, double fillFactor)
+	{
+		int off = slabIndex.get();
+		int end = off + length;
+
+		if (end > slab.length * fillFactor)
+			slab = Arrays.copyOf(slab, Math.max(slab.length * 2, (int) Math.ceil(end / fillFactor)));
+
+		slabIndex.set(end);
+		return off;
+	}
+
+	private long readPrefix(int orderIndex)
+	{
+		return ((long) get(orderIndex, OFFSET_PREFIX_HIGH) << 32) | (get(orderIndex, OFFSET_PREFIX_LOW) & 0xFFFFFFFFL);
+	}
+
+	private void writeKey(int orderIndex, int off, int length, long prefix)
+	{
+		set(orderIndex, OFFSET_KEY, off);
+		set(orderIndex, OFFSET_KEY_LENGTH, length);
+		set(orderIndex, OFFSET_PREFIX_HIGH, (int) (prefix >>> 32));
+		set(orderIndex, OFFSET_PREFIX_LOW, (int) prefix);
+	}
+
 	@Override
 	public Cell readKey(int orderIndex)
 	{
-		throw new NotImplementedException();
+		return new Cell(slab, get(orderIndex, OFFSET_KEY), get(orderIndex, OFFSET_KEY_LENGTH));
+	}
+	@Override
+	protected int compareKey(int orderIndex, Cell key)
+	{
+		return Cell.compare(readPrefix(orderIndex), slab, get(orderIndex, OFFSET_KEY), get(orderIndex, OFFSET_KEY_LENGTH),
+				key.getPrefix(), key.getBytes(), key.getOffset(), key.getLength());
 	}
+	@Override
+	protected boolean equalKeys(int orderIndex1, int orderIndex2)
+	{
+		int length = get(orderIndex1, OFFSET_KEY_LENGTH);
+		long prefix = readPrefix(orderIndex1);
+
+		return (length == get(orderIndex2, OFFSET_KEY_LENGTH)) && (prefix == readPrefix(orderIndex2)) &&
+				(Cell.compare(prefix, slab, get(orderIndex1, OFFSET_KEY), length,
+						prefix, slab, get(orderIndex2, OFFSET_KEY), length) == 0);
+	}
+	@Override
+	protected int compareItems(int orderIndex1, int orderIndex2)
+	{
+		return Cell.compare(readPrefix(orderIndex1), slab, get(orderIndex1, OFFSET_KEY), get(orderIndex1, OFFSET_KEY_LENGTH),
+				readPrefix(orderIndex2), slab, get(orderIndex2, OFFSET_KEY), get(orderIndex2, OFFSET_KEY_LENGTH));
+	}
+	@Override
+	protected int itemKeyHash(int orderIndex)
+	{
+		// same as Cell.hashCode()
+		int off = get(orderIndex, OFFSET_KEY);
+		int length = get(orderIndex, OFFSET_KEY_LENGTH);
+
+		int h = 1;
+		for (int i = 0; i < length; ++i)
+			h = 31 * h + slab[off + i];
+
+		return h;
+	}
+	@Override
+	protected void copyKey(Chunk<Cell,Cell> srcChunk, int srcOi, int oi)
+	{
+		ChunkCell src = (ChunkCell) srcChunk;
+		int length = src.get(srcOi, OFFSET_KEY_LENGTH);
+		int off = reserveSerial(length);
+
+		System.arraycopy(src.slab, src.get(srcOi, OFFSET_KEY), slab, off, length);
+		writeKey(oi, off, length, src.readPrefix(srcOi));
+	}
+
 	@Override
 	public Object readData(int oi, int di)
 	{
+		return new Cell(slab, valueOffsets[di], valueLengths[di]);
+	}
 
-		throw new NotImplementedException();
+	@Override
+	protected void writeData(int di, Cell data)
+	{
+		int off = reserveSerial(data.getLength());
+
+		System.arraycopy(data.getBytes(), data.getOffset(), slab, off, data.getLength());
+		valueOffsets[di] = off;
+		valueLengths[di] = data.getLength();
+	}
+
+	@Override
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		if (result instanceof ValueBuffer)
+		{
+			ValueBuffer buffer = (ValueBuffer) result;
+			for (int i = 0; i < length; ++i)
+			{
+				buffer.put(idx + i, slab, valueOffsets[di + i], valueLengths[di + i]);
+			}
+			return;
+		}
+
+		Object[] cells = (Object[]) result;
+		for (int i = 0; i < length; ++i)
+		{
+			cells[idx + i] = readData(NONE, di + i);
+		}
+	}
+
+	@Override
+	protected void copyData(Chunk<Cell,Cell> srcChunk, int srcDi, int di, int length)
+	{
+		ChunkCell src = (ChunkCell) srcChunk;
+
+		for (int i = 0; i < length; ++i)
+		{
+			int valueLength = src.valueLengths[srcDi + i];
+			int off = reserveSerial(valueLength);
+
+			System.arraycopy(src.slab, src.valueOffsets[srcDi + i], slab, off, valueLength);
+			valueOffsets[di + i] = off;
+			valueLengths[di + i] = valueLength;
+		}
+	}
+
+	/** copies the value of given item into result (starting at offset), without creating a Cell
+	 * @return length of the value, or -1 if there's no item or it was removed */
+	public final int readValue(int orderIndex, byte[] result, int offset)
+	{
+		if (orderIndex == NONE)
+			return -1;
+
+		int di = get(orderIndex, OFFSET_DATA);
+		if (di < 0)
+			return -1;
+
+		System.arraycopy(slab, valueOffsets[di], result, offset, valueLengths[di]);
+		return valueLengths[di];
 	}
 
 	@Override
 	public int copyValues(Object[] result, int idx, int myVer, Cell min, Cell max, SortedMap<Cell, ThreadData.PutData<Cell, Cell>> items) {
-		throw new NotImplementedException();
+		return copyValuesInto(result, idx, myVer, min, max);
+	}
+
+	/** same as copyValues(), but copies the value bytes into a ValueBuffer */
+	public int copyValues(ValueBuffer result, int idx, int myVer, Cell min, Cell max) {
+		return copyValuesInto(result, idx, myVer, min, max);
 	}
 
 	@Override
 	public int allocate(Cell key, Cell data)
 	{
-		throw new NotImplementedException();
+		int keyLength = key.getLength();
+		int dataLength = (data == null) ? 0 : data.getLength();
+
+		// a rebalanced chunk has at least half of its initial slab free - larger items would never fit
+		if ((keyLength + dataLength) * 2 > slabCapacity())
+			throw new IllegalArgumentException("Key & value of " + (keyLength + dataLength) + " bytes exceed chunk capacity");
+
+		// reserve room for key & value bytes in slab, and then allocate the item
+		int off = reserve(keyLength + dataLength);
+		if (off < 0)
+			return -1;
+
+		int oi = baseAllocate(data == null ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+			writeItem(oi, off, key, data);
+
+		// return order-array index (can be used to get data-array index)
+		return oi;
+	}
+
+	/** same as allocate() - but the slab grows as needed, so that at most fillFactor of it is used (a chunk that
+	 * is filled before it's published would otherwise fill its slab, and every later put would rebalance it) */
+	@Override
+	protected int allocateAppended(Cell key, Cell data, double fillFactor)
+	{
+		int length = itemLength(key, data);
+
+		// allocate the item first - if the order array is full, no slab room is reserved
+		int oi = baseAllocate(data == null ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+			writeItem(oi, reserveSerial(length, fillFactor), key, data);
+
+		return oi;
+	}
+
+	/** copies the key & value of an allocated item into slab, starting at off - the value right after the key */
+	private void writeItem(int oi, int off, Cell key, Cell data)
+	{
+		System.arraycopy(key.getBytes(), key.getOffset(), slab, off, key.getLength());
+		writeKey(oi, off, key.getLength(), key.getPrefix());
+
+		if (data != null)
+		{
+			int di = get(oi, OFFSET_DATA);
+
+			System.arraycopy(data.getBytes(), data.getOffset(), slab, off + key.getLength(), data.getLength());
+			valueOffsets[di] = off + key.getLength();
+			valueLengths[di] = data.getLength();
+		}
+	}
+
+	/** same as Chunk.fitRun() - also limited by the room left in slab */
+	@Override
+	public int fitRun(Cell[] keys, Cell[] values, int from, int count)
+	{
+		int fit = super.fitRun(keys, values, from, count);
+		int freeBytes = slab.length - slabIndex.get();
+
+		for (int i = 0; i < fit; ++i)
+		{
+			int length = itemLength(keys[from + i], values[from + i]);
+			if (length > freeBytes)
+				return i;
+
+			freeBytes -= length;
+		}
+
+		return fit;
+	}
+
+	/** same as allocate(), for a run - slab room for all keys & values is reserved at once, and they are
+	 * laid out in slab one after the other */
+	@Override
+	public int allocateRun(Cell[] keys, Cell[] values, int from, int count)
+	{
+		int total = 0;
+		for (int i = 0; i < count; ++i)
+			total += itemLength(keys[from + i], values[from + i]);
+
+		int off = reserve(total);
+		if (off < 0)
+			return -1;
+
+		int oi = baseAllocateRun(values, from, count);
+
+		if (oi >= 0)
+		{
+			for (int i = 0; i < count; ++i)
+			{
+				int item = oi + i * orderSize;
+				Cell key = keys[from + i];
+				Cell data = values[from + i];
+
+				System.arraycopy(key.getBytes(), key.getOffset(), slab, off, key.getLength());
+				writeKey(item, off, key.getLength(), key.getPrefix());
+				off += key.getLength();
+
+				if (data != null)
+				{
+					int di = get(item, OFFSET_DATA);
+
+					System.arraycopy(data.getBytes(), data.getOffset(), slab, off, data.getLength());
+					valueOffsets[di] = off;
+					valueLengths[di] = data.getLength();
+					off += data.getLength();
+				}
+			}
+		}
+
+		return oi;
+	}
+
+	/** @return # of slab bytes of given key & value - which must fit in a rebalanced chunk (see allocate()) */
+	private static int itemLength(Cell key, Cell data)
+	{
+		int length = key.getLength() + ((data == null) ? 0 : data.getLength());
+		if (length * 2 > slabCapacity())
+			throw new IllegalArgumentException("Key & value of " + length + " bytes exceed chunk capacity");
+
+		return length;
 	}
 
+	/** int keys are meaningless for Cell keys */
 	@Override
 	public int allocateSerial(int key, Cell data) {
 		throw new NotImplementedException();
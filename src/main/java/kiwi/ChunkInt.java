@@ -22,7 +22,7 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		}
 	}
 	
-	private static final int DATA_SIZE = 1;//Integer.SIZE/8;	// average # of BYTES of item in data array (guesstimate)
+	protected static final int DATA_SIZE = 1;//Integer.SIZE/8;	// average # of BYTES of item in data array (guesstimate)
 	
 	public ChunkInt()
 	{
@@ -32,6 +32,10 @@ public class ChunkInt extends Chunk<Integer,Integer>
 	{
 		super(minKey, DATA_SIZE, creator);
 	}
+	protected ChunkInt(Integer minKey, ChunkInt creator, boolean orderOnHeap, boolean dataOnHeap)
+	{
+		super(minKey, DATA_SIZE, creator, ORDER_SIZE, orderOnHeap, dataOnHeap);
+	}
 	@Override
 	public Chunk<Integer,Integer> newChunk(Integer minKey)
 	{
@@ -56,6 +60,27 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		return get(orderIndex, OFFSET_KEY);
 	}
 	@Override
+	protected int compareKey(int orderIndex, Integer key)
+	{
+		return Integer.compare(get(orderIndex, OFFSET_KEY), key);
+	}
+	@Override
+	protected boolean equalKeys(int orderIndex1, int orderIndex2)
+	{
+		return get(orderIndex1, OFFSET_KEY) == get(orderIndex2, OFFSET_KEY);
+	}
+	@Override
+	protected int compareItems(int orderIndex1, int orderIndex2)
+	{
+		return Integer.compare(get(orderIndex1, OFFSET_KEY), get(orderIndex2, OFFSET_KEY));
+	}
+	@Override
+	protected int itemKeyHash(int orderIndex)
+	{
+		// same as Integer.hashCode()
+		return get(orderIndex, OFFSET_KEY);
+	}
+	@Override
 	public Object readData(int oi, int di)
 	{
 		/*
@@ -67,132 +92,89 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		return dataArray[di];
 	}
 
-	@Override
-	public int copyValues(Object[] result, int idx, int myVer, Integer min, Integer max, SortedMap<Integer, ThreadData.PutData<Integer,Integer>> items) {
-		int oi = 0;
+	/** writes int data into given cell of data-array - primitive chunks override it to avoid boxing */
+	protected void writeIntData(int di, int data)
+	{
+		writeData(di, data);
+	}
 
-		if(idx == 0)
-		{
-			oi = findFirst(min,myVer);
-			if(oi == NONE) return 0;
+	/** reads int data from given cell of data-array - primitive chunks override it to avoid boxing */
+	protected int readIntData(int di)
+	{
+		return (Integer) readData(NONE, di);
+	}
 
-		} else
+	@Override
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		if (result instanceof int[])
+		{
+			int[] values = (int[]) result;
+			for (int i = 0; i < length; ++i)
+				values[idx + i] = readIntData(di + i);
+		}
+		else
 		{
-			oi = getFirst(myVer);
+			super.readDataRange(di, result, idx, length);
 		}
+	}
 
-		int sortedSize = sortedCount*ORDER_SIZE;
-		int prevKey = NONE;
-		int currKey = NONE;
-		int maxKey = max;
+	@Override
+	protected void aggregateDataRange(int di, Aggregate aggregate, int length)
+	{
+		for (int i = 0; i < length; ++i)
+			aggregate.add(readIntData(di + i));
+	}
 
-		int dataStart = get(oi,OFFSET_DATA);
-		int dataEnd = dataStart -1;
-		int itemCount = 0;
-		int oiPrev = NONE;
-		int prevDataId = NONE;
-		int currDataId = dataStart;
+	/** reads the int value of given item
+	 * @return the value, or KiWi.NO_VALUE if item is NONE or was removed */
+	public final int readInt(int orderIndex)
+	{
+		if (orderIndex == NONE)
+			return KiWi.NO_VALUE;
 
+		int di = get(orderIndex, OFFSET_DATA);
+		return (di < 0) ? KiWi.NO_VALUE : readIntData(di);
+	}
 
-	    boolean isFirst = dataStart > 0 ? true : false ;
+	@Override
+	public int copyValues(Object[] result, int idx, int myVer, Integer min, Integer max, SortedMap<Integer, ThreadData.PutData<Integer,Integer>> items) {
+		return copyValuesInto(result, idx, myVer, min, max);
+	}
 
-		while(oi != NONE)
-		{
+	/** same as copyValues(), but copies int values into an int array */
+	public int copyValues(int[] result, int idx, int myVer, Integer min, Integer max) {
+		return copyValuesInto(result, idx, myVer, min, max);
+	}
 
-			if(currKey > max)
-				break;
-
-			if(isFirst ||
-					(
-							(oiPrev < sortedSize)
-							&&
-							(prevKey != currKey)
-									&&
-									currKey <= maxKey
-							&&
-							(prevDataId + DATA_SIZE == currDataId)
-							&&
-							(getVersion(oi) <= myVer)
-					))
-			{
-				if(isFirst) {
-					dataEnd++;
-					isFirst = false;
-				} else
-				{
-					dataEnd = currDataId < 0 ? dataEnd : dataEnd+1;
-				}
-
-				oiPrev = oi;
-				oi = get(oi, OFFSET_NEXT);
-
-				prevKey = currKey;
-				prevDataId = currDataId;
-				currKey = get(oi,OFFSET_KEY);
-				currDataId = get(oi,OFFSET_DATA);
+	/** same as visitValues(), for int keys & values - keys are compared and values are read without boxing
+	 * @return false if the visitor stopped the scan */
+	public final boolean visitValues(IntScanVisitor visitor, boolean first, int myVer, Integer min, int max)
+	{
+		int oi = first ? findFirst(min, myVer) : getFirst(myVer);
+		int keyItem = NONE;		// newest (visible) item of the last handled key
+		RangeTombstone<Integer> tombstones = getRangeTombstones();
 
-			}
-			else
+		while ((oi != NONE) && (get(oi, OFFSET_KEY) <= max))
+		{
+			// skip versions beyond my version, and older versions of a key already handled
+			int version = getVersion(oi);
+			int key = get(oi, OFFSET_KEY);
+			if ((version <= myVer) && ((keyItem == NONE) || (get(keyItem, OFFSET_KEY) != key)))
 			{
-				// copy continuous range of data
-				int itemsToCopy = dataEnd -dataStart + 1;
-
-				if(itemsToCopy == 1)
-				{
-					result[idx+itemCount] =  dataArray[dataStart];
-				}
-				else if(itemsToCopy > 1)
-				{
-					System.arraycopy(dataArray, dataStart, result, idx + itemCount, itemsToCopy);
-				}
-
-				itemCount += itemsToCopy;
-
-				// find next item to start copy interval
-				while (oi != NONE)
-				{
-
-					if(currKey > max) return itemCount;
-
-					// if in a valid version, and a different key - found next item
-					if ((prevKey != currKey) && (getVersion(oi) <= myVer))
-					{
-						if(currDataId < 0)
-						{
-							// the value is NULL, the item was removed -- skip it
-							prevKey = currKey;
-
-						} else {
-							break;
-						}
-					}
-
-					// otherwise proceed to next
-					oiPrev = oi;
-					oi = get(oi, OFFSET_NEXT);
-					currKey = get(oi,OFFSET_KEY);
-
-					prevDataId = currDataId;
-					currDataId = get(oi,OFFSET_DATA);
-				}
-
-				if(oi == NONE) return itemCount;
-
-				dataStart = currDataId;//get(oi, OFFSET_DATA);
-				dataEnd = dataStart -1;
-				isFirst = true;
+				keyItem = oi;
+				int di = get(oi, OFFSET_DATA);
+
+				// the value is NULL, the item was removed (or its range was) -- skip it
+				if ((di > 0) && ((tombstones == null) || !isRangeRemoved(tombstones, oi, version, myVer)) &&
+						!visitor.visit(key, readIntData(di), version))
+					return false;
 			}
 
+			oi = get(oi, OFFSET_NEXT);
 		}
 
-		int itemsToCopy = dataEnd -dataStart + 1;
-		System.arraycopy(dataArray,dataStart, result, idx + itemCount, itemsToCopy);
-
-		itemCount+= itemsToCopy;
-
-
-
-		return itemCount;
+		return true;
 	}
 
 	@Override
@@ -209,7 +191,7 @@ public class ChunkInt extends Chunk<Integer,Integer>
 			// get data index
 			if(data != null) {
 				int di = get(oi, OFFSET_DATA);
-				dataArray[di] = data;
+				writeData(di, data);
 			}
 
 		}
@@ -218,6 +200,40 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		return oi;
 	}
 
+	@Override
+	public int allocateRun(Integer[] keys, Integer[] values, int from, int count)
+	{
+		int oi = baseAllocateRun(values, from, count);
+
+		if (oi >= 0)
+		{
+			for (int i = 0; i < count; ++i)
+			{
+				int item = oi + i * orderSize;
+				set(item, OFFSET_KEY, (int) keys[from + i]);
+
+				if (values[from + i] != null)
+					writeData(get(item, OFFSET_DATA), values[from + i]);
+			}
+		}
+
+		return oi;
+	}
+
+	/** same as allocate(), for int data - primitive chunks do not box the data */
+	public final int allocateInt(int key, int data)
+	{
+		int oi = baseAllocate(DATA_SIZE);
+
+		if (oi >= 0)
+		{
+			set(oi, OFFSET_KEY, key);
+			writeIntData(get(oi, OFFSET_DATA), data);
+		}
+
+		return oi;
+	}
+
 	@Override
 	public int allocateSerial(int key, Integer data)
 	{
@@ -231,7 +247,7 @@ public class ChunkInt extends Chunk<Integer,Integer>
 
 			if(data != null) {
 				int di = get(oi, OFFSET_DATA);
-				dataArray[di] = data;
+				writeData(di, data);
 			}
 		}
 
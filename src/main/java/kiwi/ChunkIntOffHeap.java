@@ -0,0 +1,169 @@
+package kiwi;
+
+import sun.misc.Unsafe;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Integer chunk which keeps its order array and its (int) values outside the java heap.
+ * Memory is allocated with Unsafe, and laid out as the order array followed by the data array.
+ * Values are boxed only when they are read through the generic (non-int) API.
+ */
+public class ChunkIntOffHeap extends ChunkInt
+{
+	private static final int INT_SIZE = 4;	// # of bytes of each order/data cell
+
+	/** frees off-heap memory of a chunk once the chunk itself is no longer reachable */
+	private static class Deallocator extends PhantomReference<ChunkIntOffHeap>
+	{
+		private final long address;
+
+		Deallocator(ChunkIntOffHeap chunk, long address)
+		{
+			super(chunk, queue);
+			this.address = address;
+		}
+	}
+
+	private static final ReferenceQueue<ChunkIntOffHeap>	queue = new ReferenceQueue<>();
+	private static final Set<Deallocator>					deallocators =
+			Collections.newSetFromMap(new ConcurrentHashMap<Deallocator, Boolean>());
+
+	private final long		orderAddress;	// address of order array
+	private final long		dataAddress;	// address of data array
+	private final Deallocator	deallocator;	// frees the memory - once the chunk is unreachable, or on free()
+
+	public ChunkIntOffHeap()
+	{
+		this(Integer.MIN_VALUE, null);
+	}
+	public ChunkIntOffHeap(Integer minKey, ChunkIntOffHeap creator)
+	{
+		super(minKey, creator, false, false);
+
+		// memory of chunks which were retired since the last rebalance may be reused
+		freeUnreachable();
+
+		long size = (long) (orderCapacity + dataCapacity) * INT_SIZE;
+
+		// memory must be initialized to 0, i.e., NONE
+		this.orderAddress = unsafe.allocateMemory(size);
+		unsafe.setMemory(orderAddress, size, (byte) 0);
+		this.dataAddress = orderAddress + (long) orderCapacity * INT_SIZE;
+
+		this.deallocator = new Deallocator(this, orderAddress);
+		deallocators.add(deallocator);
+	}
+
+	@Override
+	public Chunk<Integer,Integer> newChunk(Integer minKey)
+	{
+		return new ChunkIntOffHeap(minKey, this);
+	}
+
+	/** the frozen chunk may still be read by concurrent get/scan operations, so its memory can not be freed here.
+	 * instead, free the memory of all chunks that were already found unreachable */
+	@Override
+	public void release()
+	{
+		freeUnreachable();
+	}
+
+	/** frees the memory of this chunk right away (see KiWi.close) - and of chunks found unreachable */
+	@Override
+	public void free()
+	{
+		if (deallocators.remove(deallocator))
+			unsafe.freeMemory(deallocator.address);
+
+		freeUnreachable();
+	}
+
+	/** frees the memory of all chunks that were already found unreachable (and not freed yet) */
+	private static void freeUnreachable()
+	{
+		Reference<? extends ChunkIntOffHeap> ref;
+
+		while ((ref = queue.poll()) != null)
+		{
+			Deallocator d = (Deallocator) ref;
+			if (deallocators.remove(d))
+				unsafe.freeMemory(d.address);
+		}
+	}
+
+	@Override
+	protected int get(int item, int offset)
+	{
+		return unsafe.getInt(orderAddress + (long) (item + offset) * INT_SIZE);
+	}
+
+	@Override
+	protected void set(int item, int offset, int value)
+	{
+		unsafe.putInt(orderAddress + (long) (item + offset) * INT_SIZE, value);
+	}
+
+	@Override
+	protected boolean cas(int item, int offset, int expected, int value)
+	{
+		return unsafe.compareAndSwapInt(null, orderAddress + (long) (item + offset) * INT_SIZE, expected, value);
+	}
+
+	@Override
+	public Object readData(int oi, int di)
+	{
+		return readIntData(di);
+	}
+
+	@Override
+	protected void writeData(int di, Integer data)
+	{
+		writeIntData(di, data);
+	}
+
+	@Override
+	protected int readIntData(int di)
+	{
+		return unsafe.getInt(dataAddress + (long) di * INT_SIZE);
+	}
+
+	@Override
+	protected void writeIntData(int di, int data)
+	{
+		unsafe.putInt(dataAddress + (long) di * INT_SIZE, data);
+	}
+
+	@Override
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		long address = dataAddress + (long) di * INT_SIZE;
+
+		if (result instanceof int[])
+		{
+			unsafe.copyMemory(null, address, result,
+					Unsafe.ARRAY_INT_BASE_OFFSET + (long) idx * Unsafe.ARRAY_INT_INDEX_SCALE, (long) length * INT_SIZE);
+			return;
+		}
+
+		Object[] values = (Object[]) result;
+		for (int i = 0; i < length; ++i)
+		{
+			values[idx + i] = unsafe.getInt(address + (long) i * INT_SIZE);
+		}
+	}
+
+	@Override
+	protected void copyData(Chunk<Integer,Integer> srcChunk, int srcDi, int di, int length)
+	{
+		ChunkIntOffHeap src = (ChunkIntOffHeap) srcChunk;
+
+		unsafe.copyMemory(src.dataAddress + (long) srcDi * INT_SIZE, dataAddress + (long) di * INT_SIZE,
+				(long) length * INT_SIZE);
+	}
+}
@@ -0,0 +1,72 @@
+package kiwi;
+
+/**
+ * Integer chunk which keeps its values in an int array rather than as boxed Integers.
+ * Values are boxed only when they are read through the generic (non-int) API.
+ */
+public class ChunkIntPrimitive extends ChunkInt
+{
+	private final int[]		values;		// replaces the data array of Chunk
+
+	public ChunkIntPrimitive()
+	{
+		this(Integer.MIN_VALUE, null);
+	}
+	public ChunkIntPrimitive(Integer minKey, ChunkIntPrimitive creator)
+	{
+		super(minKey, creator, true, false);
+		this.values = new int[dataCapacity];
+	}
+
+	@Override
+	public Chunk<Integer,Integer> newChunk(Integer minKey)
+	{
+		return new ChunkIntPrimitive(minKey, this);
+	}
+
+	@Override
+	public Object readData(int oi, int di)
+	{
+		return values[di];
+	}
+
+	@Override
+	protected void writeData(int di, Integer data)
+	{
+		values[di] = data;
+	}
+
+	@Override
+	protected int readIntData(int di)
+	{
+		return values[di];
+	}
+
+	@Override
+	protected void writeIntData(int di, int data)
+	{
+		values[di] = data;
+	}
+
+	@Override
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		if (result instanceof int[])
+		{
+			System.arraycopy(values, di, result, idx, length);
+			return;
+		}
+
+		Object[] objects = (Object[]) result;
+		for (int i = 0; i < length; ++i)
+		{
+			objects[idx + i] = values[di + i];
+		}
+	}
+
+	@Override
+	protected void copyData(Chunk<Integer,Integer> srcChunk, int srcDi, int di, int length)
+	{
+		System.arraycopy(((ChunkIntPrimitive) srcChunk).values, srcDi, values, di, length);
+	}
+}
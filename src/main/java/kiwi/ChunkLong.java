@@ -0,0 +1,186 @@
+package kiwi;
+
+import java.util.SortedMap;
+
+/**
+ * Chunk of long keys and long values.
+ * The key is kept inline in the order array, in two int fields - so each item is one field wider than
+ * in ChunkInt. The values are kept in a long array rather than as boxed Longs.
+ */
+public class ChunkLong extends Chunk<Long,Long>
+{
+	// order_size(5) = next + version + key (high int) + data + key (low int)
+	private static final int		LONG_ORDER_SIZE = ORDER_SIZE + 1;
+	private static final int		OFFSET_KEY_LOW = ORDER_SIZE;
+
+	private static final int		DATA_SIZE = 1;	// average # of BYTES of item in data array (guesstimate)
+
+	private final long[]			values;		// replaces the data array of Chunk
+
+	public ChunkLong()
+	{
+		this(Long.MIN_VALUE, null);
+	}
+	public ChunkLong(Long minKey, ChunkLong creator)
+	{
+		super(minKey, DATA_SIZE, creator, LONG_ORDER_SIZE, true, false);
+		this.values = new long[dataCapacity];
+	}
+	@Override
+	public Chunk<Long,Long> newChunk(Long minKey)
+	{
+		return new ChunkLong(minKey, this);
+	}
+
+	/** reads the key of given item, without boxing */
+	public final long readLongKey(int orderIndex)
+	{
+		return ((long) get(orderIndex, OFFSET_KEY) << 32) | (get(orderIndex, OFFSET_KEY_LOW) & 0xFFFFFFFFL);
+	}
+
+	private void writeLongKey(int orderIndex, long key)
+	{
+		set(orderIndex, OFFSET_KEY, (int) (key >>> 32));
+		set(orderIndex, OFFSET_KEY_LOW, (int) key);
+	}
+
+	@Override
+	public Long readKey(int orderIndex)
+	{
+		return readLongKey(orderIndex);
+	}
+	@Override
+	protected int compareKey(int orderIndex, Long key)
+	{
+		return Long.compare(readLongKey(orderIndex), key);
+	}
+	@Override
+	protected boolean equalKeys(int orderIndex1, int orderIndex2)
+	{
+		return (get(orderIndex1, OFFSET_KEY) == get(orderIndex2, OFFSET_KEY)) &&
+				(get(orderIndex1, OFFSET_KEY_LOW) == get(orderIndex2, OFFSET_KEY_LOW));
+	}
+	@Override
+	protected int compareItems(int orderIndex1, int orderIndex2)
+	{
+		return Long.compare(readLongKey(orderIndex1), readLongKey(orderIndex2));
+	}
+	@Override
+	protected int itemKeyHash(int orderIndex)
+	{
+		return Long.hashCode(readLongKey(orderIndex));
+	}
+	@Override
+	protected void copyKey(Chunk<Long,Long> srcChunk, int srcOi, int oi)
+	{
+		set(oi, OFFSET_KEY, srcChunk.get(srcOi, OFFSET_KEY));
+		set(oi, OFFSET_KEY_LOW, srcChunk.get(srcOi, OFFSET_KEY_LOW));
+	}
+
+	@Override
+	public Object readData(int oi, int di)
+	{
+		return values[di];
+	}
+
+	@Override
+	protected void writeData(int di, Long data)
+	{
+		values[di] = data;
+	}
+
+	@Override
+	protected void readDataRange(int di, Object result, int idx, int length)
+	{
+		if (result instanceof long[])
+		{
+			System.arraycopy(values, di, result, idx, length);
+			return;
+		}
+
+		Object[] objects = (Object[]) result;
+		for (int i = 0; i < length; ++i)
+		{
+			objects[idx + i] = values[di + i];
+		}
+	}
+
+	@Override
+	protected void aggregateDataRange(int di, Aggregate aggregate, int length)
+	{
+		for (int i = 0; i < length; ++i)
+			aggregate.add(values[di + i]);
+	}
+
+	@Override
+	protected void copyData(Chunk<Long,Long> srcChunk, int srcDi, int di, int length)
+	{
+		System.arraycopy(((ChunkLong) srcChunk).values, srcDi, values, di, length);
+	}
+
+	@Override
+	public int copyValues(Object[] result, int idx, int myVer, Long min, Long max, SortedMap<Long, ThreadData.PutData<Long,Long>> items) {
+		return copyValuesInto(result, idx, myVer, min, max);
+	}
+
+	/** same as copyValues(), but copies long values into a long array */
+	public int copyValues(long[] result, int idx, int myVer, Long min, Long max) {
+		return copyValuesInto(result, idx, myVer, min, max);
+	}
+
+	@Override
+	public int allocate(Long key, Long data)
+	{
+		// allocate items in order and data array => data-array only contains long-sized data
+		int oi = baseAllocate(data == null ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+		{
+			writeLongKey(oi, key);
+
+			if(data != null) {
+				values[get(oi, OFFSET_DATA)] = data;
+			}
+		}
+
+		// return order-array index (can be used to get data-array index)
+		return oi;
+	}
+
+	@Override
+	public int allocateRun(Long[] keys, Long[] data, int from, int count)
+	{
+		int oi = baseAllocateRun(data, from, count);
+
+		if (oi >= 0)
+		{
+			for (int i = 0; i < count; ++i)
+			{
+				int item = oi + i * orderSize;
+				writeLongKey(item, keys[from + i]);
+
+				if (data[from + i] != null)
+					values[get(item, OFFSET_DATA)] = data[from + i];
+			}
+		}
+
+		return oi;
+	}
+
+	@Override
+	public int allocateSerial(int key, Long data)
+	{
+		int oi = baseAllocateSerial(data == null ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+		{
+			writeLongKey(oi, key);
+
+			if(data != null) {
+				values[get(oi, OFFSET_DATA)] = data;
+			}
+		}
+
+		return oi;
+	}
+}
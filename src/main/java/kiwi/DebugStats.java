@@ -13,4 +13,5 @@ public class DebugStats {
     public long duplicatesCount = 0;
     public long nulItemsCount = 0;
     public long removedItems = 0;
+    public double bloomFalsePositiveRate = 0;   // sum over chunks of the estimated rate of their bloom filters
 }
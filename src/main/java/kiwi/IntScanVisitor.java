@@ -0,0 +1,12 @@
+package kiwi;
+
+/**
+ * Same as ScanVisitor, for int keys & values (see KiWi.scanInt(min, max, visitor)) - items are visited
+ * without boxing their keys or values.
+ */
+public interface IntScanVisitor
+{
+	/** @param version	version of the item (at most the scan's version)
+	 * @return false to stop the scan */
+	boolean visit(int key, int value, int version);
+}
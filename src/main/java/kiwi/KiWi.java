@@ -3,23 +3,34 @@ package kiwi;
 import kiwi.ThreadData.PutData;
 import kiwi.ThreadData.ScanData;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K,V>
+public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K,V>, AutoCloseable
 {
 	/*************** Constants ***************/
-	public static int MAX_THREADS = 32;
-	public static final int PAD_SIZE = 640;
+	public static int MAX_THREADS = 32;	// max # of live threads operating on KiWi (set before first operation)
+	public static final int PAD_SIZE = 16;	// # of references between slots of thread arrays - a cache line apart
 	public static int RebalanceSize = 2;
+	public static final int NO_VALUE = Integer.MIN_VALUE;	// returned by int operations when key doesn't exist
+	public static final int FIRST_VERSION = 2;	// since 0 means NONE, and 1 means FREEZE
 
 	/*************** Members ***************/
 	private final ConcurrentSkipListMap<K , Chunk<K, V>>	skiplist;		// skiplist of chunks for fast navigation
 	protected AtomicInteger 							version;		// current version to add items with
 	private final boolean								withScan;		// support scan operations or not (scans add thread-array)
-	private final ScanData[]		scanArray;
+	private final ScanData<K,V>[]		scanArray;
+	private final Set<ScanData<K,V>>					openScans;		// scans which outlive a single call (iterators), not bound to a thread
+	private final Map<ScanData<K,V>,ScanOwner<K,V>>	scanOwners;		// end open scans whose owner is collected unclosed (see watchScan)
+	private final ReferenceQueue<Object>				droppedOwners;	// owners of open scans which were collected
 
 
 	/*************** Constructors ***************/
@@ -32,19 +43,37 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	public KiWi(Chunk<K,V> head, boolean withScan)
 	{
 		this.skiplist = new ConcurrentSkipListMap<>();
-		this.version = new AtomicInteger(2);	// first version is 2 - since 0 means NONE, and -1 means FREEZE
+		this.version = new AtomicInteger(FIRST_VERSION);
 
 		this.skiplist.put(head.minKey, head);	// add first chunk (head) into skiplist
 		this.withScan = withScan;
 
 		if (withScan) {
 			//this.threadArray = new ThreadData[MAX_THREADS];
-			this.scanArray = new ScanData[MAX_THREADS * (PAD_SIZE + 1)];
+			this.scanArray = (ScanData<K,V>[]) new ScanData[ThreadSlots.capacity() * (PAD_SIZE + 1)];
 		}
 		else {
 			//this.threadArray = null;
 			this.scanArray = null;
 		}
+		this.openScans = Collections.newSetFromMap(new ConcurrentHashMap<ScanData<K,V>,Boolean>());
+		this.scanOwners = new ConcurrentHashMap<>();
+		this.droppedOwners = new ReferenceQueue<>();
+	}
+
+	/** creates a KiWi over given chunks, which are filled but not linked yet (see BulkLoader) - they are linked,
+	 * and added to the skiplist, in one pass. chunks must be sorted by min key, and the first must be the head */
+	KiWi(List<Chunk<K,V>> chunks, boolean withScan)
+	{
+		this(chunks.get(0), withScan);
+
+		Chunk<K,V> prev = chunks.get(0);
+		for (Chunk<K,V> c : chunks.subList(1, chunks.size()))
+		{
+			prev.next.set(c, false);
+			skiplist.put(c.minKey, c);
+			prev = c;
+		}
 	}
 
 	/*************** Methods ***************/
@@ -57,18 +86,435 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	public V get(K key)
 	{
 		// find chunk matching key
-		Chunk<K,V> c = skiplist.floorEntry(key).getValue();
-		c = iterateChunks(c, key);
+		Chunk<K,V> c = findChunk(key);
+
+		// key was never put in chunk - it can't be found there (nor in a pending put)
+		if (!c.mightContain(key))
+			return null;
 
-		// help concurrent put operations (helpPut) set a version
+		// help concurrent put operations (helpPut) and range removals set a version
 		PutData<K,V> pd = null;
+		helpRemoveRange(c);
 		pd = c.helpPutInGet(version.get(), key);
 
 		// find item matching key inside chunk
 		return c.find(key, pd);
 	}
 
+	/** same as get(), for many keys - sortedKeys must be sorted (ascending). the chunk list is walked once:
+	 * each chunk's pending puts are read once, and its keys are found in one pass over the chunk
+	 * @param result the value of sortedKeys[i] is set in result[i] - null if the key doesn't exist */
+	public void getAll(K[] sortedKeys, V[] result)
+	{
+		int n = sortedKeys.length;
+		if (n == 0)
+			return;
+
+		// find chunk matching first key - chunks of later keys follow it
+		Chunk<K,V> c = findChunk(sortedKeys[0]);
+		int from = 0;
+
+		while (from < n)
+		{
+			c = iterateChunks(c, sortedKeys[from]);
+
+			// keys which fall into the chunk - below its next chunk's min key
+			Chunk<K,V> next = c.next.getReference();
+			int to = from + 1;
+			while ((to < n) && ((next == null) || (sortedKeys[to].compareTo(next.minKey) < 0)))
+				++to;
+
+			// help concurrent put operations (helpPut) and range removals set a version - for all keys at once
+			helpRemoveRange(c);
+			SortedMap<K,PutData<K,V>> items = c.helpPutInGet(version.get(), sortedKeys[from], sortedKeys[to - 1]);
+
+			c.findAll(sortedKeys, from, to, items, result);
+			from = to;
+		}
+	}
+
+	/** same as get(), for int keys & values - chunks must be ChunkInt (or its subclasses). the value is read
+	 * without boxing, but the key is boxed for the index lookup (which allocates, for keys outside the Integer cache)
+	 * @return the value, or NO_VALUE if key doesn't exist */
+	@SuppressWarnings("unchecked")
+	public int getInt(int key)
+	{
+		K k = (K) Integer.valueOf(key);
+
+		// find chunk matching key
+		Chunk<K,V> c = findChunk(k);
+
+		if (!c.mightContain(k))
+			return NO_VALUE;
+
+		// help concurrent put operations (helpPut) and range removals set a version
+		helpRemoveRange(c);
+		PutData<K,V> pd = c.helpPutInGet(version.get(), k);
+
+		// find item matching key inside chunk, and read its value without boxing
+		int oi = c.findItem(k, pd);
+		return ((ChunkInt) c).readInt(c.isRangeRemoved(oi) ? Chunk.NONE : oi);
+	}
+
+	/** same as get(), for Cell values - chunks must be ChunkCell. copies the value's bytes into result
+	 * (starting at offset) rather than creating a Cell
+	 * @return length of the value, or -1 if key doesn't exist */
+	public int getBytes(K key, byte[] result, int offset)
+	{
+		// find chunk matching key
+		Chunk<K,V> c = findChunk(key);
+
+		if (!c.mightContain(key))
+			return -1;
+
+		// help concurrent put operations (helpPut) and range removals set a version
+		helpRemoveRange(c);
+		PutData<K,V> pd = c.helpPutInGet(version.get(), key);
+
+		// find item matching key inside chunk, and copy its value
+		int oi = c.findItem(key, pd);
+		return ((ChunkCell) c).readValue(c.isRangeRemoved(oi) ? Chunk.NONE : oi, result, offset);
+	}
+
 	public void put(K key, V val)
+	{
+		put(key, val, 0, false, false, null);
+	}
+
+	/** same as put(), for int keys & values - chunks must be ChunkInt (or its subclasses). the value is written
+	 * without boxing, but this is not allocation free: the key is boxed for the index lookup, and with scans
+	 * supported the put is published as a new PutData (readers may keep it, so it isn't reused) */
+	@SuppressWarnings("unchecked")
+	public void putInt(int key, int val)
+	{
+		put((K) Integer.valueOf(key), null, val, true, false, null);
+	}
+
+	/** puts a batch of keys & values (a null value removes its key) - if a key appears more than once, its last
+	 * value is put. the batch is sorted, and split into runs of keys that fall into the same chunk. each run is
+	 * allocated at once, published as a single pending put and linked into the chunk's list in one pass, so all
+	 * of its items become visible at the same version (runs into different chunks get their versions separately) */
+	public void putBatch(K[] keys, V[] values)
+	{
+		putBatch(keys, values, keys.length);
+	}
+
+	/** puts all entries of map (see putBatch) - the entries are read in one pass, without looking their keys up,
+	 * and put in key order, so each chunk is visited once. a SortedMap in the keys' natural order isn't sorted again
+	 * @param keys,values arrays to read the entries into - used if large enough, otherwise arrays of the same
+	 * 			runtime type are allocated (as in Collection.toArray) */
+	public void putAll(Map<? extends K, ? extends V> map, K[] keys, V[] values)
+	{
+		int n = map.size();
+		if (keys.length < n)
+			keys = Arrays.copyOf(keys, n);
+		if (values.length < n)
+			values = Arrays.copyOf(values, n);
+
+		int count = 0;
+		for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+		{
+			// map has grown since its size was read (a concurrent map)
+			if ((count == keys.length) || (count == values.length))
+			{
+				keys = Arrays.copyOf(keys, 2 * count + 1);
+				values = Arrays.copyOf(values, 2 * count + 1);
+			}
+
+			keys[count] = entry.getKey();
+			values[count] = entry.getValue();
+			++count;
+		}
+
+		if ((map instanceof SortedMap) && (((SortedMap<?,?>) map).comparator() == null))
+			putRuns(keys, values, count);
+		else
+			putBatch(keys, values, count);
+	}
+
+	/** same as putBatch(keys, values), for the first n keys & values */
+	private void putBatch(final K[] keys, V[] values, int n)
+	{
+		if (n == 0)
+			return;
+
+		// sort batch by key - a stable sort, so the last value of a duplicate key is last among its duplicates
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; ++i)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return keys[i1].compareTo(keys[i2]);
+			}
+		});
+
+		// keep the last value of each key, so the run's keys are unique
+		K[] runKeys = Arrays.copyOf(keys, n);
+		V[] runValues = Arrays.copyOf(values, n);
+		int count = 0;
+
+		for (int i = 0; i < n; ++i)
+		{
+			int j = order[i];
+			if ((count > 0) && (runKeys[count - 1].compareTo(keys[j]) == 0))
+				--count;
+
+			runKeys[count] = keys[j];
+			runValues[count] = values[j];
+			++count;
+		}
+
+		putRuns(runKeys, runValues, count);
+	}
+
+	/** puts the first count keys & values (see putBatch) - keys must be sorted, with no duplicates */
+	private void putRuns(K[] runKeys, V[] runValues, int count)
+	{
+		if (count == 0)
+			return;
+
+		// find chunk matching first key - chunks of later keys follow it
+		Chunk<K,V> c = skiplist.floorEntry(runKeys[0]).getValue();
+		int from = 0;
+		boolean rebalanced = false;	// true if the chunk was rebalanced since the last run was put
+
+		while (from < count)
+		{
+			c = iterateChunks(c, runKeys[from]);
+
+			// if chunk is infant chunk (has a parent), we can't add to it
+			{
+				Chunk<K,V> parent = c.creator;
+				if (parent != null) {
+					if (rebalance(parent) == null)
+						return;
+				}
+			}
+
+			// the run holds the keys which fall into the chunk (below its next chunk's min key) - as many as fit
+			Chunk<K,V> next = c.next.getReference();
+			int end = from + 1;
+			while ((end < count) && ((next == null) || (runKeys[end].compareTo(next.minKey) < 0)))
+				++end;
+
+			int runCount = c.fitRun(runKeys, runValues, from, end - from);
+
+			// a run which doesn't fit is put whole once the chunk is rebalanced - it's split between chunks
+			// (and so isn't visible at once) only if it doesn't fit in the rebalanced chunk either
+			if ((runCount < end - from) && !rebalanced)
+				runCount = 0;
+
+			int oi = (runCount > 0) ? c.allocateRun(runKeys, runValues, from, runCount) : -1;
+
+			// if failed - chunk is full, compact it & retry
+			if (oi < 0)
+			{
+				c = rebalance(c);
+				if (c == null)
+					return;
+				rebalanced = true;
+				continue;
+			}
+
+			PutData<K,V> run = PutData.run(c, oi, runCount);
+
+			// add keys to chunk's bloom filter before the run can be seen
+			c.addToBloom(run);
+
+			if (withScan)
+			{
+				// publish the run before setting its version, as in put()
+				c.publishPut(run);
+
+				// if chunk is frozen - freeze the run (unless freeze() already added it), and reinsert it
+				if (c.isFreezed())
+					c.setRunVersion(run, Chunk.FREEZE_VERSION);
+			}
+
+			// set the version of all the run's items at once - to current version, or whichever was set first
+			if (c.setRunVersion(run, this.version.get()) == Chunk.FREEZE_VERSION)
+			{
+				c.publishPut(null);
+				c = rebalance(c);
+				if (c == null)
+					return;
+				continue;
+			}
+
+			c.linkRun(run, runKeys, from);
+			c.publishPut(null);
+
+			from += runCount;
+			rebalanced = false;
+
+			if(shouldRebalance(c))
+				rebalance(c);
+		}
+	}
+
+	/** removes all keys in [min,max] - by adding a range tombstone to each chunk of the range, rather than a
+	 * removal item per key (which would fill the chunks, and rebalance them over and over). gets & scans skip
+	 * the items a tombstone covers which aren't newer than it, and the next rebalance drops these items (once no
+	 * pending scan needs them) - so a chunk is rebalanced once it has a few tombstones, which keeps their check
+	 * short. each chunk's tombstone gets its own version - so, as with puts of several keys, a concurrent scan
+	 * may see the removal in some chunks of the range only */
+	public void removeRange(K min, K max)
+	{
+		if (min.compareTo(max) > 0)
+			return;
+
+		// find chunk matching min key
+		Chunk<K,V> c = skiplist.floorEntry(min).getValue();
+		K from = min;	// keys of the range below it are already removed
+
+		while (true)
+		{
+			c = iterateChunks(c, from);
+
+			// if chunk is infant chunk (has a parent), we can't add to it (see put())
+			{
+				Chunk<K,V> parent = c.creator;
+				if (parent != null) {
+					if (rebalance(parent) == null)
+						return;
+				}
+			}
+
+			// add tombstone BEFORE setting its version, so that readers which see it help set it (see put())
+			RangeTombstone<K> tombstone = c.addRangeTombstone(min, max);
+
+			// the compaction of a frozen chunk may miss the tombstone - freeze it, and add it to the rebalanced chunks
+			if (c.isFreezed())
+			{
+				c.setRangeTombstoneVersion(tombstone, Chunk.FREEZE_VERSION);
+				c = rebalance(c);
+				continue;
+			}
+
+			// take a new version - so puts which read the version after the removal are newer than it
+			if (c.setRangeTombstoneVersion(tombstone, version.getAndIncrement()) == Chunk.FREEZE_VERSION)
+			{
+				c = rebalance(c);
+				continue;
+			}
+
+			// the removed keys are no longer live - count them, as removals, in the chunk's statistics
+			c.countRangeRemoved(tombstone);
+
+			// proceed to the next chunk, if it holds keys of the range
+			Chunk<K,V> next = c.next.getReference();
+
+			// apply the tombstones (drop the items they removed), rather than check them on every get & scan
+			if (c.hasTooManyRangeTombstones(tombstone))
+				rebalance(c);
+
+			if ((next == null) || (next.minKey.compareTo(max) > 0))
+				return;
+
+			from = next.minKey;
+			c = next;
+		}
+	}
+
+	/** same as put() - and reads the previous value, which was found while adding the item to the chunk's list
+	 * (the version preceding the put's version)
+	 * @return the previous value, or null if key didn't exist (or was removed) */
+	public V getAndPut(K key, V val)
+	{
+		return put(key, val, 0, false, true, null);
+	}
+
+	/** puts val only if key doesn't exist - a conditional put (see compute()), so a concurrent put of key is
+	 * never overwritten
+	 * @return the current value (val wasn't put), or null if val was put */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(K key, final V val)
+	{
+		// value found by the last (successful) application
+		final Object[] found = new Object[1];
+
+		put(key, null, 0, false, false, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V curr) {
+				found[0] = curr;
+				return (curr != null) ? curr : val;
+			}
+		});
+
+		return (V) found[0];
+	}
+
+	/** puts val only if the key's current value equals expected - a conditional put (see compute()), which
+	 * fails if the key's newest version changed meanwhile, and then compares the newer value
+	 * @return true if val was put */
+	public boolean replace(K key, final V expected, final V val)
+	{
+		// result of the last (successful) application
+		final boolean[] replaced = new boolean[1];
+
+		put(key, null, 0, false, false, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V curr) {
+				replaced[0] = (curr != null) && curr.equals(expected);
+				return replaced[0] ? val : curr;
+			}
+		});
+
+		return replaced[0];
+	}
+
+	/** puts val only if key exists - a conditional put (see compute())
+	 * @return the replaced value, or null if key doesn't exist (and val wasn't put) */
+	@SuppressWarnings("unchecked")
+	public V replace(K key, final V val)
+	{
+		// value found by the last (successful) application
+		final Object[] found = new Object[1];
+
+		put(key, null, 0, false, false, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V curr) {
+				found[0] = curr;
+				return (curr != null) ? val : null;
+			}
+		});
+
+		return (V) found[0];
+	}
+
+	/** atomically replaces the value of key with fn(key, current value) - the current value is null if key
+	 * doesn't exist, and a null result removes key.
+	 * the result is appended as a new version, which is linked only if the version it was computed from is still
+	 * the key's newest - otherwise it's canceled and fn is applied again to the newer value (so fn may be
+	 * applied more than once, and shouldn't have side effects). if fn returns the current value itself,
+	 * nothing is appended
+	 * @return the new value */
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> fn)
+	{
+		return put(key, null, 0, false, false, fn);
+	}
+
+	/** same as compute() with fn(key, curr) = (curr == null) ? val : remap(curr, val)
+	 * @return the new value */
+	public V merge(K key, final V val, final BiFunction<? super V, ? super V, ? extends V> remap)
+	{
+		return compute(key, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V curr) {
+				return (curr == null) ? val : remap.apply(curr, val);
+			}
+		});
+	}
+
+	/** puts either val, or intVal if isInt is set (then chunks must be ChunkInt) - or, if fn is set, the value
+	 * fn computes from the key's current value (see compute())
+	 * @param needPrev true to read the previous value
+	 * @return the previous value - null if key didn't exist, or if not needPrev. the new value, if fn is set */
+	@SuppressWarnings("unchecked")
+	private V put(K key, V val, int intVal, boolean isInt, boolean needPrev,
+			BiFunction<? super K, ? super V, ? extends V> fn)
 	{
 		// find chunk matching key
 		Chunk<K,V> c = skiplist.floorEntry(key).getValue();
@@ -86,29 +532,57 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 				Chunk<K,V> parent = c.creator;
 				if (parent != null) {
 					if (rebalance(parent) == null)
-						return;
+						return null;
 				}
 			}
 
+			// conditional put - compute the value from the key's newest version (read like get()),
+			// which the put will expect to still be the newest when it's added to the list
+			// (a version removed by removeRange() is still the expected one - but its value is null)
+			int expected = PutData.UNCONDITIONAL;
+			if (fn != null)
+			{
+				int curr = Chunk.NONE;
+				if (c.mightContain(key))
+				{
+					helpRemoveRange(c);
+					curr = c.findItem(key, c.helpPutInGet(version.get(), key));
+				}
+				expected = (curr == Chunk.NONE) ? Chunk.NONE : c.getDataIndex(curr);
+
+				V currVal = ((expected > 0) && !c.isRangeRemoved(curr)) ? (V) c.readData(Chunk.NONE, expected) : null;
+				val = fn.apply(key, currVal);
+
+				// same value (or removing a missing key) - nothing to change
+				if (val == currVal)
+					return val;
+			}
+
 			// allocate space in chunk for key & value
 			// this also writes key&val into the allocated space
-			int oi = c.allocate(key, val);
+			int oi = isInt ? ((ChunkInt) c).allocateInt((Integer) key, intVal) : c.allocate(key, val);
 			
 			// if failed - chunk is full, compact it & retry
 			if (oi < 0)
 			{
 				c = rebalance(c);
 				if (c == null)
-					return;
+					return null;
 				continue;
 			}
+
+			if (fn != null)
+				c.setConditional(oi);
+
+			// add key to chunk's bloom filter before the put can be seen (published or versioned)
+			c.addToBloom(oi);
 			
 			if (withScan)
 			{
 				// publish put operation in thread array
 				// publishing BEFORE setting the version so that other operations can see our value and help
 				// this is in order to prevent us from adding an item with an older version that might be missed by others (scan/get)
-				c.publishPut(new PutData<>(c, oi));
+				c.publishPut(new PutData<>(c, oi, expected));
 
 
 				if(c.isFreezed())
@@ -140,15 +614,23 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			
 			// allocation is done (and published) and has a version
 			// all that is left is to insert it into the chunk's linked list
-			c.addToList(oi, key);
+			int prevData = c.addToList(oi, key, expected);
+
+			// read previous value while the put is still published
+			V prev = (needPrev && (prevData > 0) && !c.isPreviousRangeRemoved(oi)) ?
+					(V) c.readData(Chunk.NONE, prevData) : null;
 			
 			// delete operation from thread array - and done
 			c.publishPut(null);
 
+			// conditional put whose expected version was replaced meanwhile - compute the value again
+			if ((fn != null) && c.isCanceled(oi))
+				continue;
+
 			if(shouldRebalance(c))
 				rebalance(c);
 
-			break;
+			return (fn != null) ? val : prev;
 		}
 	}
 
@@ -220,7 +702,419 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return;
 	}
 
+	/** frees the resources the chunks hold outside the java heap (with ChunkIntOffHeap chunks) right away,
+	 * rather than once the chunks are collected. the KiWi must not be used after it's closed - and no operation
+	 * may still run on it */
+	@Override
+	public void close()
+	{
+		for (Chunk<K,V> c = skiplist.firstEntry().getValue(); c != null; c = c.next.getReference())
+			c.free();
+	}
+
 	public int scan(V[] result, K min, K max) {
+		return scan((Object) result, min, max);
+	}
+
+	/** same as scan(), for int keys & values - chunks must be ChunkInt (or its subclasses) */
+	@SuppressWarnings("unchecked")
+	public int scan(int[] result, int min, int max) {
+		return scan(result, (K) Integer.valueOf(min), (K) Integer.valueOf(max));
+	}
+
+	/** same as scan(), for long keys & values - chunks must be ChunkLong */
+	@SuppressWarnings("unchecked")
+	public int scan(long[] result, long min, long max) {
+		return scan(result, (K) Long.valueOf(min), (K) Long.valueOf(max));
+	}
+
+	/** same as scan(), for Cell values - chunks must be ChunkCell. value bytes are copied into result */
+	public int scan(ChunkCell.ValueBuffer result, K min, K max) {
+		return scan((Object) result, min, max);
+	}
+
+	/** @return iterator over the values of keys in [min,max], at a version pinned now - like scan(), but chunks
+	 * are read lazily as the iterator advances. the version stays published (so rebalances keep the items the
+	 * iterator needs) until the iterator is exhausted or closed - an iterator which isn't read to its end should
+	 * be closed, otherwise rebalances keep the old versions of its range until the iterator is collected */
+	public ScanIterator<K,V> scan(K min, K max) {
+		// publish scan data outside the thread array - the iterator may be used by (or outlive) other operations
+		ScanData<K,V> sd = openScan(min, max);
+		int myVer = pinVersion(sd);
+
+		// find chunk matching min key, to start iterator there
+		Chunk<K,V> c = skiplist.floorEntry(min).getValue();
+		c = iterateChunks(c, min);
+
+		ScanIterator<K,V> iter = new ScanIterator<>(this, sd, min, max, myVer, c);
+		watchScan(iter, sd);
+
+		return iter;
+	}
+
+	/** descending scan - copies into result the values of the largest keys in [min,max] (at most result.length
+	 * values), from the largest key down. same version semantics as scan()
+	 * @return number of values copied */
+	public int scanDescending(V[] result, K min, K max) {
+		return scanDescending(result, min, max, result.length);
+	}
+
+	/** same as scanDescending(), for int keys & values - chunks must be ChunkInt (or its subclasses) */
+	@SuppressWarnings("unchecked")
+	public int scanDescending(int[] result, int min, int max) {
+		return scanDescending(result, (K) Integer.valueOf(min), (K) Integer.valueOf(max), result.length);
+	}
+
+	private int scanDescending(Object result, K min, K max, int limit) {
+		// get current version for this scan, and publish it (see scan())
+		int myVer = newVersion(min, max);
+
+		try {
+			// visible items of a chunk are collected in key order, and copied backwards
+			int[] ring = new int[Math.max(1, Math.min(limit, Chunk.MAX_ITEMS))];
+
+			// find chunk matching max key, to start there
+			Chunk<K,V> c = skiplist.floorEntry(max).getValue();
+			c = iterateChunks(c, max);
+
+			K upper = null;		// keys of the previous chunk (which were already scanned) start here
+			int itemsCount = 0;
+			while (itemsCount < limit)
+			{
+				// help pending put ops (and range removals) set a version (see scan())
+				helpRemoveRange(c);
+				c.helpPutInScan(myVer, min, max);
+
+				itemsCount += c.copyValuesDescending(result, itemsCount, limit - itemsCount, ring, myVer, min, max, upper);
+
+				// chunk holding min key was scanned - we're done
+				if (c.minKey.compareTo(min) <= 0)
+					break;
+
+				upper = c.minKey;
+				c = prevChunk(upper);
+				if (c == null)
+					break;
+			}
+
+			return itemsCount;
+		}
+		finally {
+			// remove scan from scan array (the copy may throw, e.g., on a result of the wrong type)
+			publishScan(null);
+		}
+	}
+
+	/** finds the chunk holding the keys right below given key (the last chunk whose min key is smaller) -
+	 * through the index, and then following next pointers, since the index may lag behind the chunks list */
+	private Chunk<K,V> prevChunk(K key)
+	{
+		Map.Entry<K,Chunk<K,V>> entry = skiplist.lowerEntry(key);
+		if (entry == null)
+			return null;
+
+		Chunk<K,V> c = entry.getValue();
+		Chunk<K,V> next = c.next.getReference();
+
+		while ((next != null) && (next.minKey.compareTo(key) < 0))
+		{
+			c = next;
+			next = c.next.getReference();
+		}
+
+		return c;
+	}
+
+	/** @return spliterator over the values of keys in [min,max], at a version pinned now - for parallel scans.
+	 * it splits at chunk boundaries, and all parts read the same version. the version stays published until all
+	 * parts are exhausted, or the spliterator is closed - or, if parts are left unread (e.g., by a short-circuiting
+	 * stream operation) and it's not closed, until all parts are collected */
+	public ScanSpliterator<K,V> spliterator(K min, K max) {
+		// publish a single scan data for all parts - they may run on any thread
+		ScanData<K,V> sd = openScan(min, max);
+
+		ScanSpliterator<K,V> spliterator = new ScanSpliterator<>(this, sd, pinVersion(sd), min, max);
+		watchScan(spliterator.getOwner(), sd);
+
+		return spliterator;
+	}
+
+	/** @return stream of the values of keys in [min,max] (see spliterator()) - closing it ends the scan (otherwise,
+	 * if it's not read to its end, the scan ends once the stream is collected) */
+	public Stream<V> stream(K min, K max, boolean parallel) {
+		final ScanSpliterator<K,V> spliterator = spliterator(min, max);
+
+		return StreamSupport.stream(spliterator, parallel).onClose(new Runnable() {
+			@Override
+			public void run() {
+				spliterator.close();
+			}
+		});
+	}
+
+	/** @return iterator over a part of a spliterator's range, at the spliterator's (published) version */
+	ScanIterator<K,V> scanPart(int version, K min, K max, boolean maxInclusive) {
+		// find chunk matching min key, to start iterator there
+		Chunk<K,V> c = skiplist.floorEntry(min).getValue();
+		c = iterateChunks(c, min);
+
+		return new ScanIterator<>(this, null, min, max, maxInclusive, version, c);
+	}
+
+	/** @return min key of the middle chunk among the chunks starting inside (min,max) - by the index,
+	 * or null if there are none (the range is in a single chunk) */
+	K findSplitKey(K min, K max, boolean maxInclusive) {
+		NavigableSet<K> keys = skiplist.subMap(min, false, max, false).keySet();
+
+		int count = 0;
+		for (Iterator<K> iter = keys.iterator(); iter.hasNext(); iter.next())
+			count++;
+
+		// the set may shrink in the meantime (by rebalances), then there may be less keys
+		K splitKey = null;
+		Iterator<K> iter = keys.iterator();
+		for (int i = 0; (i <= count / 2) && iter.hasNext(); ++i)
+			splitKey = iter.next();
+
+		return splitKey;
+	}
+
+	/** @return estimated # of values of keys in range - # of items in the chunks of the range (by the index) */
+	long estimateSize(K min, K max, boolean maxInclusive) {
+		K first = skiplist.floorKey(min);
+		long size = 0;
+
+		for (Chunk<K,V> c : skiplist.subMap(first, true, max, maxInclusive).values())
+			size += Math.min(c.getStatistics().getCompactedCount(), Chunk.MAX_ITEMS);	// frozen chunks look full
+
+		return size;
+	}
+
+	/** publishes scan data for a scan which outlives a single call (iterators, bounded scans...) - it's not bound
+	 * to a thread, so it's kept apart from the thread array until endScan() */
+	private ScanData<K,V> openScan(K min, K max) {
+		releaseDroppedScans();
+
+		ScanData<K,V> sd = new ScanData<>(min, max);
+		openScans.add(sd);
+		return sd;
+	}
+
+	/** ends given open scan once its owner (the iterator, cursor... reading it) is collected, unless the scan
+	 * is ended before - so a scan which is abandoned unclosed doesn't keep its version published forever */
+	private void watchScan(Object owner, ScanData<K,V> sd) {
+		// the scan may already be done (e.g., an empty range)
+		if (openScans.contains(sd))
+			scanOwners.put(sd, new ScanOwner<>(owner, sd, droppedOwners));
+	}
+
+	/** ends the open scans whose owners were collected (see watchScan) */
+	@SuppressWarnings("unchecked")
+	private void releaseDroppedScans() {
+		ScanOwner<K,V> owner;
+
+		while ((owner = (ScanOwner<K,V>) droppedOwners.poll()) != null)
+		{
+			if (scanOwners.remove(owner.scan, owner))
+				openScans.remove(owner.scan);
+		}
+	}
+
+	/** removes the scan data of an iterator or a bounded scan once it's done */
+	void endScan(ScanData<K,V> sd) {
+		openScans.remove(sd);
+
+		ScanOwner<K,V> owner = scanOwners.remove(sd);
+		if (owner != null)
+			owner.clear();
+	}
+
+	/** @return # of open scans (iterators, bounded scans...) which are not done yet - after the scans of
+	 * collected owners are ended */
+	int countOpenScans() {
+		releaseDroppedScans();
+		return openScans.size();
+	}
+
+	/** bounded scan - copies into result the values of at most 'limit' keys in [min,max], at a version pinned now.
+	 * chunks beyond the limit are not visited. a cursor which isn't read to the end of the range should be closed,
+	 * otherwise rebalances keep the old versions of its range until the cursor is collected
+	 * @return cursor holding the # of values copied - pass it to scan(result, cursor, limit) for the next page */
+	public ScanCursor<K,V> scan(V[] result, K min, K max, int limit) {
+		return scanFirstPage(result, min, max, limit);
+	}
+
+	/** same as scan(result, min, max, limit), for int keys & values - chunks must be ChunkInt (or its subclasses) */
+	@SuppressWarnings("unchecked")
+	public ScanCursor<K,V> scan(int[] result, int min, int max, int limit) {
+		return scanFirstPage(result, (K) Integer.valueOf(min), (K) Integer.valueOf(max), limit);
+	}
+
+	/** copies the next page of a bounded scan - values of at most 'limit' keys following the cursor's last key,
+	 * at the cursor's version. the search starts at the chunk of the last key (found through the index)
+	 * @return the same cursor, holding the # of values copied (0 if the scan is done) */
+	public ScanCursor<K,V> scan(V[] result, ScanCursor<K,V> cursor, int limit) {
+		scanPage(result, cursor, cursor.lastKey, limit);
+		return cursor;
+	}
+
+	/** same as scan(result, cursor, limit), for int values - chunks must be ChunkInt (or its subclasses) */
+	public ScanCursor<K,V> scan(int[] result, ScanCursor<K,V> cursor, int limit) {
+		scanPage(result, cursor, cursor.lastKey, limit);
+		return cursor;
+	}
+
+	private ScanCursor<K,V> scanFirstPage(Object result, K min, K max, int limit) {
+		// publish scan data outside the thread array - the cursor keeps the version until the scan is done
+		ScanData<K,V> sd = openScan(min, max);
+
+		ScanCursor<K,V> cursor = new ScanCursor<>(this, sd, max, pinVersion(sd));
+		watchScan(cursor, sd);
+
+		scanPage(result, cursor, min, limit);
+		return cursor;
+	}
+
+	/** copies values of at most 'limit' keys, starting at key 'from' (exclusive if it's cursor's last key) */
+	private void scanPage(Object result, ScanCursor<K,V> cursor, K from, int limit) {
+		cursor.count = 0;
+		if (cursor.isDone())
+			return;
+
+		// find chunk matching first key, to start page there
+		Chunk<K,V> c = skiplist.floorEntry(from).getValue();
+		c = iterateChunks(c, from);
+
+		int itemsCount = 0;
+		while (itemsCount < limit)
+		{
+			// reached end of range - no more pages
+			if (c == null || c.minKey.compareTo(cursor.maxKey) > 0)
+			{
+				cursor.close();
+				break;
+			}
+
+			// help pending put ops (and range removals) set a version (see scan())
+			helpRemoveRange(c);
+			c.helpPutInScan(cursor.version, from, cursor.maxKey);
+
+			itemsCount += c.copyValuesInto(result, itemsCount, cursor.version, from, cursor.maxKey,
+					limit - itemsCount, cursor);
+			c = c.next.getReference();
+		}
+
+		cursor.count = itemsCount;
+	}
+
+	/** visitor scan - passes to visitor the key, value & version of each item in [min,max], in key order, at a
+	 * version pinned now (same items as scan()), without copying the values into a result array
+	 * @return false if the visitor stopped the scan */
+	public boolean scan(K min, K max, ScanVisitor<K,V> visitor) {
+		int myVer = newVersion(min, max);
+
+		try {
+			Chunk<K,V> c = skiplist.floorEntry(min).getValue();
+			c = iterateChunks(c, min);
+
+			for (boolean first = true; (c != null) && (c.minKey.compareTo(max) <= 0); first = false)
+			{
+				// help pending put ops (and range removals) set a version (see scan())
+				helpRemoveRange(c);
+				c.helpPutInScan(myVer, min, max);
+
+				if (!c.visitValues(visitor, first, myVer, min, max))
+					return false;
+
+				c = c.next.getReference();
+			}
+
+			return true;
+		}
+		finally {
+			// remove scan from scan array (the visitor may throw)
+			publishScan(null);
+		}
+	}
+
+	/** same as scan(min, max, visitor), for int keys & values - chunks must be ChunkInt (or its subclasses),
+	 * and items are visited without boxing */
+	@SuppressWarnings("unchecked")
+	public boolean scanInt(int min, int max, IntScanVisitor visitor) {
+		K minKey = (K) Integer.valueOf(min);
+		K maxKey = (K) Integer.valueOf(max);
+		int myVer = newVersion(minKey, maxKey);
+
+		try {
+			Chunk<K,V> c = skiplist.floorEntry(minKey).getValue();
+			c = iterateChunks(c, minKey);
+
+			for (boolean first = true; (c != null) && (c.minKey.compareTo(maxKey) <= 0); first = false)
+			{
+				// help pending put ops (and range removals) set a version (see scan())
+				helpRemoveRange(c);
+				c.helpPutInScan(myVer, minKey, maxKey);
+
+				if (!((ChunkInt) c).visitValues(visitor, first, myVer, (Integer) minKey, max))
+					return false;
+
+				c = c.next.getReference();
+			}
+
+			return true;
+		}
+		finally {
+			// remove scan from scan array (the visitor may throw)
+			publishScan(null);
+		}
+	}
+
+	/** @return count, sum, min & max of the values of keys in [min,max] (values must be numbers) - computed like
+	 * scan(), at a version pinned now, but without copying the values out */
+	public Aggregate aggregate(K min, K max) {
+		Aggregate aggregate = new Aggregate();
+		scan(aggregate, min, max);
+		return aggregate;
+	}
+
+	/** same as aggregate(), for int keys & values - chunks must be ChunkInt (or its subclasses), whose values are
+	 * aggregated without boxing */
+	@SuppressWarnings("unchecked")
+	public Aggregate aggregate(int min, int max) {
+		return aggregate((K) Integer.valueOf(min), (K) Integer.valueOf(max));
+	}
+
+	/** @return exact number of non-removed keys in [min,max] - counted like scan(), at a version pinned now,
+	 * but without copying the values out */
+	public int count(K min, K max) {
+		return scan((Object) null, min, max);
+	}
+
+	/** @return true if no key in [min,max] is non-removed - a visitor scan, which stops at the first value */
+	public boolean isEmpty(K min, K max) {
+		return scan(min, max, new ScanVisitor<K,V>() {
+			@Override
+			public boolean visit(K key, V value, int version) {
+				return false;
+			}
+		});
+	}
+
+	/** @return approximate number of non-removed keys - sum of the chunks' statistics, in O(chunks).
+	 * puts and range removals in progress (and chunks being rebalanced) may be counted or not */
+	public int approximateSize() {
+		int size = 0;
+
+		for (Chunk<K,V> c = skiplist.firstEntry().getValue(); c != null; c = c.next.getReference())
+			size += c.getStatistics().getLiveCount();
+
+		return size;
+	}
+
+	/** scans values into result, which is either V[], int[] (then chunks must be ChunkInt),
+	 * long[] (then chunks must be ChunkLong), ValueBuffer (then chunks must be ChunkCell) or Aggregate -
+	 * or null, to only count the values */
+	private int scan(Object result, K min, K max) {
 		// get current version and increment version (atomically) for this scan
 		// all items beyond my version are ignored by this scan
 		// the newVersion() method is used to ensure my version is published correctly,
@@ -239,12 +1133,22 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			if(c == null || c.minKey.compareTo(max)>0)
 				break;
 
-			// help pending put ops set a version - and get in a sorted map for use in the scan iterator
+			// help pending put ops (and range removals) set a version - and get in a sorted map for use in the scan iterator
 			// (so old put() op doesn't suddently set an old version this scan() needs to see,
 			//  but after the scan() passed it)
+			helpRemoveRange(c);
 			SortedMap<K,PutData<K,V>> items = c.helpPutInScan(myVer, min, max);
 
-			itemsCount += c.copyValues(result, itemsCount, myVer, min, max, items);
+			if (result instanceof int[])
+				itemsCount += ((ChunkInt) c).copyValues((int[]) result, itemsCount, myVer, (Integer) min, (Integer) max);
+			else if (result instanceof long[])
+				itemsCount += ((ChunkLong) c).copyValues((long[]) result, itemsCount, myVer, (Long) min, (Long) max);
+			else if (result instanceof ChunkCell.ValueBuffer)
+				itemsCount += ((ChunkCell) c).copyValues((ChunkCell.ValueBuffer) result, itemsCount, myVer, (Cell) min, (Cell) max);
+			else if ((result == null) || (result instanceof Aggregate))
+				itemsCount += c.copyValuesInto(result, itemsCount, myVer, min, max);
+			else
+				itemsCount += c.copyValues((Object[]) result, itemsCount, myVer, min, max, items);
 			c = c.next.getReference();
 		}
 
@@ -290,9 +1194,16 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	private int newVersion(K min, K max)
 	{
 		// create new ScanData and publish it - in it the scan's version will be stored
-		ScanData sd = new ScanData(min, max);
+		ScanData<K,V> sd = new ScanData<>(min, max);
 		publishScan(sd);
-		
+
+		return pinVersion(sd);
+	}
+
+	/** sets a new version for given (already published) scan data
+	 * @return the scan's version - set by us, or by a rebalance that saw the scan first */
+	private int pinVersion(ScanData<K,V> sd)
+	{
 		// increment global version counter and get latest
 		int myVer = version.getAndIncrement();
 		
@@ -303,6 +1214,19 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			return sd.version.get();
 	}
 	
+	/** finds the chunk matching key, without allocating (unlike floorEntry, which creates an entry snapshot)
+	 * - for get operations */
+	private Chunk<K,V> findChunk(K key)
+	{
+		// the found chunk may be removed from the skiplist between the two lookups (in compaction)
+		// then fall back to floorEntry
+		Chunk<K,V> c = skiplist.get(skiplist.floorKey(key));
+		if (c == null)
+			c = skiplist.floorEntry(key).getValue();
+
+		return iterateChunks(c, key);
+	}
+
 	/** finds and returns the chunk where key should be located, starting from given chunk */
 	private Chunk<K,V> iterateChunks(Chunk<K,V> c, K key)
 	{
@@ -321,22 +1245,35 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return c;
 	}
 
-	private ArrayList<ScanData> getScansArray(int myVersion)
+	/** help concurrent range removals (removeRange) set a version - a new one (even for a scan), so that the
+	 * removal is newer than puts that were done before it started, and older than puts that read the version
+	 * after it was seen */
+	void helpRemoveRange(Chunk<K,V> c)
+	{
+		if (c.hasPendingRangeTombstones())
+			c.helpRangeTombstones(version.getAndIncrement());
+	}
+
+	private ArrayList<ScanData<K,?>> getScansArray(int myVersion)
 	{
 
-		ArrayList<ScanData> pScans = new ArrayList<>(MAX_THREADS);
+		ArrayList<ScanData<K,?>> pScans = new ArrayList<>(MAX_THREADS);
 		boolean isIncremented = false;
 		int ver = -1;
 
+		// scans whose owner was dropped unclosed no longer need their versions
+		releaseDroppedScans();
+
 		// read all pending scans
-		for(int i = 0; i < MAX_THREADS; ++i)
+		for(int i = 0, n = ThreadSlots.bound(); i < n; ++i)
 		{
-			ScanData scan = scanArray[pad(i)];
+			ScanData<K,V> scan = scanArray[pad(i)];
 			if(scan != null)  pScans.add(scan);
 		}
+		pScans.addAll(openScans);
 
 
-		for(ScanData sd : pScans)
+		for(ScanData<K,?> sd : pScans)
 		{
 			if(sd.version.get() == Chunk.NONE)
 			{
@@ -359,10 +1296,10 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		TreeSet<Integer> scans = new TreeSet<>();
 		
 		// go over thread data of all threads
-		for (int i = 0; i < MAX_THREADS; ++i)
+		for (int i = 0, n = ThreadSlots.bound(); i < n; ++i)
 		{
 			// make sure data is for a Scan operation
-			ScanData currScan = scanArray[pad(i)];
+			ScanData<K,V> currScan = scanArray[pad(i)];
 			if (currScan == null)
 				continue;
 			
@@ -411,16 +1348,19 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		connectToChunkList(engaged, compacted);
 		updateIndex(engaged, compacted);
 
+		// frozen chunks are no longer reachable from the list or the index
+		rebalancer.retire();
+
 		return compacted.get(0);
 	}
 
-	private ScanIndex updateAndGetPendingScans(int currVersion, List<Chunk<K, V>> engaged) {
+	private ScanIndex<K> updateAndGetPendingScans(int currVersion, List<Chunk<K, V>> engaged) {
 		// TODO: implement versions selection by key
 		K minKey = engaged.get(0).minKey;
 		Chunk<K,V> nextToRange= engaged.get(engaged.size() -1).next.getReference();
 		K maxKey =  nextToRange == null ? null : nextToRange.minKey;
 
-		return new ScanIndex(getScansArray(currVersion), currVersion, minKey, maxKey);
+		return new ScanIndex<>(getScansArray(currVersion), currVersion, minKey, maxKey);
 	}
 
 	private void updateIndex(List<Chunk<K,V>> engagedChunks, List<Chunk<K,V>> compacted)
@@ -521,12 +1461,10 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	}
 
 	/** publish data into thread array - use null to clear **/
-	private void publishScan(ScanData data)
+	private void publishScan(ScanData<K,V> data)
 	{
-		// get index of current thread
-		// since thread IDs are increasing and changing, we assume threads are created one after another (sequential IDs).
-		// thus, (ThreadID % MAX_THREADS) will return a unique index for each thread in range [0, MAX_THREADS)
-		int idx = (int) (Thread.currentThread().getId() % MAX_THREADS);
+		// get index of current thread - unique among live threads
+		int idx = ThreadSlots.get();
 		
 		// publish into thread array
 		scanArray[pad(idx)] = data;
@@ -606,6 +1544,9 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		System.out.println("Duplicates count: "  + ds.duplicatesCount/ds.chunksCount);
 		System.out.println();
 
+		System.out.println("Bloom false-positive rate: " + ds.bloomFalsePositiveRate/ds.chunksCount);
+		System.out.println();
+
 	}
 
 	public DebugStats calcChunkStatistics()
@@ -672,5 +1613,15 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return duplicates;
 	}
 
+	/** reference to the owner of an open scan (see watchScan) - it's enqueued once the owner is collected */
+	private static class ScanOwner<K extends Comparable<? super K>,V> extends PhantomReference<Object>
+	{
+		private final ScanData<K,V> scan;
 
+		ScanOwner(Object owner, ScanData<K,V> scan, ReferenceQueue<Object> queue)
+		{
+			super(owner, queue);
+			this.scan = scan;
+		}
+	}
 }
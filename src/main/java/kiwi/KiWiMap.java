@@ -3,52 +3,78 @@ package kiwi;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiFunction;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 /**
  * Created by msulamy on 7/27/15.
  */
-public class KiWiMap implements CompositionalMap<Integer,Integer>
+public class KiWiMap implements CompositionalMap<Integer,Integer>, AutoCloseable
 {
 	/***************	Constants			***************/
+    private static final BiFunction<Integer,Integer,Integer> SUM = new BiFunction<Integer,Integer,Integer>() {
+        @Override
+        public Integer apply(Integer a, Integer b)
+        {
+            return a + b;
+        }
+    };
 	
 	/***************	Members				***************/
 	public static boolean			SupportScan = true;
     public static int               RebalanceSize = 2;
+    public static boolean           OffHeap = false;	// keep chunks' order & data arrays outside the java heap
+    public static boolean           PrimitiveValues = false;	// keep values in int arrays rather than boxed
 
 	public KiWi<Integer,Integer>	kiwi;
     
     /***************	Constructors		***************/
     public KiWiMap()
     {
-    	ChunkInt.initPool();
         KiWi.RebalanceSize = RebalanceSize;
-    	this.kiwi = new KiWi<>(new ChunkInt(), SupportScan);
+    	this.kiwi = new KiWi<>(newHeadChunk(), SupportScan);
     }
     
     /***************	Methods				***************/
 
-    /** same as put - always puts the new value! even if the key is not absent, it is updated */
+    private Chunk<Integer,Integer> newHeadChunk()
+    {
+        if (OffHeap)
+            return new ChunkIntOffHeap();
+        if (PrimitiveValues)
+            return new ChunkIntPrimitive();
+
+        ChunkInt.initPool();
+        return new ChunkInt();
+    }
+
+    /** puts v only if k doesn't exist (see KiWi.putIfAbsent)
+     * @return the current value, or null if v was put */
     @Override
     public Integer putIfAbsent(Integer k, Integer v)
     {
-    	kiwi.put(k, v);
-        return null;	// can implement return value but not necessary
+        return kiwi.putIfAbsent(k, v);
     }
     
-    /** requires full scan() for atomic size() */
+    /** exact size - counts the non-removed keys at a scan version, without copying the values (O(keys)) */
     @Override
     public int size()
     {
-        return -1;
+        return kiwi.count(Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
-    
-    /** not implemented ATM - can be implemented with chunk.findFirst() */
+
+    /** @return approximate size, from per-chunk statistics (O(chunks)) */
+    public int approximateSize()
+    {
+        return kiwi.approximateSize();
+    }
+
+    /** exact - stops scanning at the first non-removed key */
     @Override
     public boolean isEmpty()
     {
-        return false;
+        return kiwi.isEmpty(Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
     @Override
@@ -57,19 +83,112 @@ public class KiWiMap implements CompositionalMap<Integer,Integer>
     	return kiwi.get((Integer)o);
     }
 
+    /** same as get, for many keys - which must be sorted. the value of sortedKeys[i] is set in result[i] */
+    public void getAll(Integer[] sortedKeys, Integer[] result)
+    {
+        kiwi.getAll(sortedKeys, result);
+    }
+
     @Override
     public Integer put(Integer k, Integer v)
     {
-    	kiwi.put(k, v);
-        return null;
+        return kiwi.getAndPut(k, v);
+    }
+
+    /** same as put, without boxing the value (with OffHeap/PrimitiveValues chunks) - the key is still boxed,
+     * and with SupportScan the put still allocates its published PutData (see KiWi.putInt) */
+    public void putInt(int k, int v)
+    {
+        kiwi.putInt(k, v);
+    }
+
+    /** same as get, without boxing the value (with OffHeap/PrimitiveValues chunks) - the key is still boxed
+     * @return the value, or KiWi.NO_VALUE if the key doesn't exist */
+    public int getInt(int k)
+    {
+        return kiwi.getInt(k);
+    }
+
+    /** same as getRange, without boxing the values (with OffHeap/PrimitiveValues chunks) */
+    public int scan(int[] result, int min, int max)
+    {
+        return kiwi.scan(result, min, max);
+    }
+
+    /** same as getRange, in descending key order - copies values of the largest keys in range (at most result.length) */
+    public int getRangeDescending(Integer[] result, Integer min, Integer max)
+    {
+        return kiwi.scanDescending(result, min, max);
+    }
+
+    /** @return iterator over the values of keys in [min,max] - reads chunks lazily, at a version pinned now.
+     * close it if it's not exhausted */
+    public ScanIterator<Integer,Integer> scan(Integer min, Integer max)
+    {
+        return kiwi.scan(min, max);
+    }
+
+    /** passes each key & value in [min,max] to visitor, without copying (or boxing) them
+     * @return false if the visitor stopped the scan */
+    public boolean scan(int min, int max, IntScanVisitor visitor)
+    {
+        return kiwi.scanInt(min, max, visitor);
+    }
+
+    /** @return count, sum, min & max of the values of keys in [min,max], without copying (or boxing) them */
+    public Aggregate aggregate(int min, int max)
+    {
+        return kiwi.aggregate(min, max);
+    }
+
+    /** puts v only if the newest value of k equals expected (see KiWi.replace())
+     * @return true if v was put */
+    @Override
+    public boolean replace(Integer k, Integer expected, Integer v)
+    {
+        return kiwi.replace(k, expected, v);
+    }
+
+    /** puts v only if k exists (see KiWi.replace())
+     * @return the replaced value, or null if k doesn't exist */
+    @Override
+    public Integer replace(Integer k, Integer v)
+    {
+        return kiwi.replace(k, v);
+    }
+
+    /** atomic - see KiWi.compute() */
+    @Override
+    public Integer compute(Integer k, BiFunction<? super Integer, ? super Integer, ? extends Integer> fn)
+    {
+        return kiwi.compute(k, fn);
+    }
+
+    /** atomic - see KiWi.merge() */
+    @Override
+    public Integer merge(Integer k, Integer v, BiFunction<? super Integer, ? super Integer, ? extends Integer> fn)
+    {
+        return kiwi.merge(k, v, fn);
+    }
+
+    /** atomically adds delta to the value of k (a missing key counts as 0)
+     * @return the new value */
+    public int addAndGet(int k, int delta)
+    {
+        return kiwi.merge(k, delta, SUM);
     }
 
     /** same as put(key,null) - which signifies to KiWi that the item is removed */
     @Override
     public Integer remove(Object o)
     {
-    	kiwi.put((Integer)o, null);
-        return null;
+        return kiwi.getAndPut((Integer)o, null);
+    }
+
+    /** removes all keys in [min,max] - by a range tombstone per chunk, rather than a removal per key (see KiWi.removeRange) */
+    public void removeRange(Integer min, Integer max)
+    {
+        kiwi.removeRange(min, max);
     }
 
     @Override
@@ -89,14 +208,11 @@ public class KiWiMap implements CompositionalMap<Integer,Integer>
 */
     }
     
-    /** same as put(key,val) for each item */
+    /** same as put(key,val) for each item - put as a batch, in key order (see KiWi.putAll) */
     @Override
     public void putAll(Map<? extends Integer, ? extends Integer> map)
     {
-    	for (Integer key : map.keySet())
-    	{
-    		kiwi.put(key, map.get(key));
-    	}
+    	kiwi.putAll(map, new Integer[map.size()], new Integer[map.size()]);
     }
     
     /** Same as get(key) != null **/
@@ -106,13 +222,20 @@ public class KiWiMap implements CompositionalMap<Integer,Integer>
     	return get(o) != null;
     }
 
-    /** Clear is not really an option (can be implemented non-safe inside KiWi) - we just create new kiwi **/
+    /** Clear is not really an option (can be implemented non-safe inside KiWi) - we just create new kiwi
+     * (with OffHeap chunks, the old kiwi's memory is freed once it's collected - close() frees it right away) **/
     @Override
     public void clear()
     {
     	//this.kiwi.debugPrint();
-    	ChunkInt.initPool();
-    	this.kiwi = new KiWi<>(new ChunkInt(), SupportScan);
+    	this.kiwi = new KiWi<>(newHeadChunk(), SupportScan);
+    }
+
+    /** frees the memory of OffHeap chunks right away (see KiWi.close) - the map must not be used afterwards */
+    @Override
+    public void close()
+    {
+        kiwi.close();
     }
 
     /** Not implemented - can scan all & return keys **/
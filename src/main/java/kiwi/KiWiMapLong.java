@@ -0,0 +1,206 @@
+package kiwi;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+
+/**
+ * KiWi map of long keys and long values, kept unboxed in ChunkLong chunks
+ */
+public class KiWiMapLong implements CompositionalMap<Long,Long>
+{
+	/***************	Constants			***************/
+    private static final BiFunction<Long,Long,Long> SUM = new BiFunction<Long,Long,Long>() {
+        @Override
+        public Long apply(Long a, Long b)
+        {
+            return a + b;
+        }
+    };
+
+	/***************	Members				***************/
+	public static boolean			SupportScan = true;
+    public static int               RebalanceSize = 2;
+
+	public KiWi<Long,Long>			kiwi;
+
+    /***************	Constructors		***************/
+    public KiWiMapLong()
+    {
+        KiWi.RebalanceSize = RebalanceSize;
+    	this.kiwi = new KiWi<Long,Long>(new ChunkLong(), SupportScan);
+    }
+
+    /***************	Methods				***************/
+
+    /** puts v only if k doesn't exist (see KiWi.putIfAbsent)
+     * @return the current value, or null if v was put */
+    @Override
+    public Long putIfAbsent(Long k, Long v)
+    {
+        return kiwi.putIfAbsent(k, v);
+    }
+
+    /** exact size - counts the non-removed keys at a scan version, without copying the values (O(keys)) */
+    @Override
+    public int size()
+    {
+        return kiwi.count(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** @return approximate size, from per-chunk statistics (O(chunks)) */
+    public int approximateSize()
+    {
+        return kiwi.approximateSize();
+    }
+
+    /** exact - stops scanning at the first non-removed key */
+    @Override
+    public boolean isEmpty()
+    {
+        return kiwi.isEmpty(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Long get(Object o)
+    {
+    	return kiwi.get((Long)o);
+    }
+
+    /** same as get, for many keys - which must be sorted. the value of sortedKeys[i] is set in result[i] */
+    public void getAll(Long[] sortedKeys, Long[] result)
+    {
+        kiwi.getAll(sortedKeys, result);
+    }
+
+    @Override
+    public Long put(Long k, Long v)
+    {
+        return kiwi.getAndPut(k, v);
+    }
+
+    /** same as put(key,null) - which signifies to KiWi that the item is removed */
+    @Override
+    public Long remove(Object o)
+    {
+        return kiwi.getAndPut((Long)o, null);
+    }
+
+    /** removes all keys in [min,max] - by a range tombstone per chunk, rather than a removal per key (see KiWi.removeRange) */
+    public void removeRange(Long min, Long max)
+    {
+        kiwi.removeRange(min, max);
+    }
+
+    @Override
+    public int getRange(Long[] result, Long min, Long max)
+    {
+        return kiwi.scan(result,min,max);
+    }
+
+    /** same as getRange, without boxing the values */
+    public int scan(long[] result, long min, long max)
+    {
+        return kiwi.scan(result, min, max);
+    }
+
+    /** @return count, sum, min & max of the values of keys in [min,max], without copying (or boxing) them */
+    public Aggregate aggregate(long min, long max)
+    {
+        return kiwi.aggregate(min, max);
+    }
+
+    /** puts v only if the newest value of k equals expected (see KiWi.replace())
+     * @return true if v was put */
+    @Override
+    public boolean replace(Long k, Long expected, Long v)
+    {
+        return kiwi.replace(k, expected, v);
+    }
+
+    /** puts v only if k exists (see KiWi.replace())
+     * @return the replaced value, or null if k doesn't exist */
+    @Override
+    public Long replace(Long k, Long v)
+    {
+        return kiwi.replace(k, v);
+    }
+
+    /** atomic - see KiWi.compute() */
+    @Override
+    public Long compute(Long k, BiFunction<? super Long, ? super Long, ? extends Long> fn)
+    {
+        return kiwi.compute(k, fn);
+    }
+
+    /** atomic - see KiWi.merge() */
+    @Override
+    public Long merge(Long k, Long v, BiFunction<? super Long, ? super Long, ? extends Long> fn)
+    {
+        return kiwi.merge(k, v, fn);
+    }
+
+    /** atomically adds delta to the value of k (a missing key counts as 0)
+     * @return the new value */
+    public long addAndGet(long k, long delta)
+    {
+        return kiwi.merge(k, delta, SUM);
+    }
+
+    /** same as put(key,val) for each item - put as a batch, in key order (see KiWi.putAll) */
+    @Override
+    public void putAll(Map<? extends Long, ? extends Long> map)
+    {
+    	kiwi.putAll(map, new Long[map.size()], new Long[map.size()]);
+    }
+
+    /** Same as get(key) != null **/
+    @Override
+    public boolean containsKey(Object o)
+    {
+    	return get(o) != null;
+    }
+
+    /** Clear is not really an option (can be implemented non-safe inside KiWi) - we just create new kiwi **/
+    @Override
+    public void clear()
+    {
+    	this.kiwi = new KiWi<Long,Long>(new ChunkLong(), SupportScan);
+    }
+
+    /** Not implemented - can scan all & return keys **/
+    @Override
+    public Set<Long> keySet()
+    {
+        throw new NotImplementedException();
+    }
+
+    /** Not implemented - can scan all & return values **/
+    @Override
+    public Collection<Long> values()
+    {
+        throw new NotImplementedException();
+    }
+
+    /** Not implemented - can scan all & create entries **/
+    @Override
+    public Set<Entry<Long,Long>> entrySet()
+    {
+        throw new NotImplementedException();
+    }
+
+    /** Not implemented - can scan all & search **/
+    @Override
+    public boolean containsValue(Object o)
+    {
+    	throw new NotImplementedException();
+    }
+
+    public void debugPrint()
+    {
+    	kiwi.debugPrint();
+    }
+}
@@ -13,13 +13,33 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
 {
 	/***************	Constants			***************/
 	
+	private static final int		INT_BYTES = 4;
+
+	/** per-thread cells for keys & values of single-item ops - chunks copy their bytes, so they can be reused */
+	private static final class Scratch
+	{
+		final byte[]	key = new byte[INT_BYTES];
+		final byte[]	value = new byte[INT_BYTES];
+		final Cell		keyCell = new Cell(key, 0, INT_BYTES);
+		final Cell		valueCell = new Cell(value, 0, INT_BYTES);
+	}
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
 	/***************	Members				***************/
+	public static boolean			SupportScan = true;
+
 	private KiWi<Cell,Cell> kiwi;
     
     /***************	Constructors		***************/
     public KiWiMapVLK()
     {
-    	this.kiwi = new KiWi<>(new ChunkCell());
+    	this.kiwi = new KiWi<>(new ChunkCell(), SupportScan);
     }
     
     /***************	Methods				***************/
@@ -27,8 +47,7 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     @Override
     public Integer putIfAbsent(Integer k, Integer v)
     {
-    	
-    	kiwi.put(cellFromInt(k), cellFromInt(v));
+    	put(k, v);
         return null;
     }
     
@@ -46,20 +65,30 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     @Override
     public Integer get(Object o)
     {
-    	return cellToInt(kiwi.get(cellFromInt((Integer)o)));
+    	Scratch s = scratch.get();
+
+    	// value bytes are copied into the thread's value array
+    	if (kiwi.getBytes(keyCell(s, (Integer)o), s.value, 0) < 0)
+    		return null;
+
+    	return readInt(s.value, 0);
     }
 
     @Override
     public Integer put(Integer k, Integer v)
     {
-    	kiwi.put(cellFromInt(k), cellFromInt(v));
+    	Scratch s = scratch.get();
+
+    	writeInt(s.value, 0, v);
+    	s.valueCell.refresh();
+    	kiwi.put(keyCell(s, k), s.valueCell);
         return null;
     }
 
     @Override
     public Integer remove(Object o)
     {
-    	kiwi.put(cellFromInt((Integer)o), null);
+    	kiwi.put(keyCell(scratch.get(), (Integer)o), null);
         return null;
     }
 
@@ -72,14 +101,23 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     @Override
     public int getRange(Integer[] result, Integer min, Integer max)
     {
-        throw new NotImplementedException();
+    	// scan range keys are published for the whole scan, so they can't be the thread's scratch cells
+    	ChunkCell.ValueBuffer values = new ChunkCell.ValueBuffer(result.length * INT_BYTES, result.length);
+    	int count = kiwi.scan(values, newCell(min), newCell(max));
+
+    	for (int i = 0; i < count; ++i)
+    	{
+    		result[i] = readInt(values.getBytes(), values.getOffset(i));
+    	}
+
+    	return count;
     }
     
     /** Same as get(key) != null **/
     @Override
     public boolean containsKey(Object o)
     {
-    	return get(cellFromInt((Integer)o)) != null;
+    	return get(o) != null;
     }
 
     /** Not supported - can be implemented in a non-safe manner **/
@@ -87,7 +125,7 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     public void clear()
     {
     	//this.kiwi.debugPrint();
-    	this.kiwi = new KiWi<>(new ChunkCell());
+    	this.kiwi = new KiWi<>(new ChunkCell(), SupportScan);
     }
 
     /** Scan all & return keys **/
@@ -115,33 +153,38 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     @Override
     public boolean containsValue(Object o)
     {
-    	return (get(cellFromInt((Integer)o)) != null);
+    	return get(o) != null;
     }
-    
-    private Cell cellFromInt(Integer n)
+
+    private static Cell keyCell(Scratch s, int n)
     {
-    	byte[] b = new byte[4];
-    	
-    	// write int data as bytes into data-array
-		b[0] = (byte) (n >>> 24);
-		b[1] = (byte) (n >>> 16);
-		b[2] = (byte) (n >>> 8);
-		b[3] = (byte) (n.intValue());
-		
-		return new Cell(b, 0, 4);
+    	writeInt(s.key, 0, n);
+    	s.keyCell.refresh();
+    	return s.keyCell;
     }
-    private Integer cellToInt(Cell c)
+    private static Cell newCell(int n)
     {
-    	if (c == null)
-    		return null;
+    	byte[] b = new byte[INT_BYTES];
+    	writeInt(b, 0, n);
+    	return new Cell(b, 0, INT_BYTES);
+    }
 
-    	byte[] b = c.getBytes();
-    	int off = c.getOffset();
-    	
+    /** writes int as bytes, with the sign bit flipped so unsigned byte order matches int order */
+    private static void writeInt(byte[] b, int off, int n)
+    {
+    	n ^= Integer.MIN_VALUE;
+
+		b[off+0] = (byte) (n >>> 24);
+		b[off+1] = (byte) (n >>> 16);
+		b[off+2] = (byte) (n >>> 8);
+		b[off+3] = (byte) n;
+    }
+    private static int readInt(byte[] b, int off)
+    {
     	int n = b[off+0] << 24 | (b[off+1] & 0xFF) << 16 |
     		(b[off+2] & 0xFF) << 8 | (b[off+3] & 0xFF);
-    	
-    	return n;
+
+    	return n ^ Integer.MIN_VALUE;
     }
     
     public void debugPrint()
@@ -0,0 +1,28 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removal of all keys in [min,max] from a chunk (see KiWi.removeRange) - an item of the range is removed if its
+ * version isn't newer than the tombstone's. Like a put, a tombstone is added to the chunk before it gets a
+ * version, so readers that see it help it set one (and a freeze sets FREEZE_VERSION, so it's added again
+ * in the rebalanced chunks).
+ * Tombstones of a chunk are an immutable list - a new tombstone is pushed at its head, and counts the list's length.
+ */
+public class RangeTombstone<K extends Comparable<? super K>>
+{
+	public final K					min;		// min key (inclusive) of the removed range
+	public final K					max;		// max key (inclusive) of the removed range
+	public final AtomicInteger		version;	// NONE until set - shared by the copies made in compaction
+	public final RangeTombstone<K>	next;		// next (older) tombstone of the chunk, null if last
+	public final int				count;		// # of tombstones in the list starting at this one
+
+	public RangeTombstone(K min, K max, AtomicInteger version, RangeTombstone<K> next)
+	{
+		this.min = min;
+		this.max = max;
+		this.version = version;
+		this.next = next;
+		this.count = (next == null) ? 1 : next.count + 1;
+	}
+}
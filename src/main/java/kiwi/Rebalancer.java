@@ -170,6 +170,7 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
     private AtomicReference<List<Chunk<K,V>>> compactedChunks = new AtomicReference<>(null);
     private AtomicReference<List<Chunk<K,V>>> engagedChunks = new AtomicReference<>(null);
     private AtomicBoolean freezedItems = new AtomicBoolean(false);
+    private AtomicBoolean retiredChunks = new AtomicBoolean(false);
 
 
    /******* Constructors *********/
@@ -258,6 +259,21 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
         return this;
     }
 
+    /***
+     * Releases the engaged (frozen) chunks. Should be called after the compacted chunks replaced them
+     * in the chunks list and in the index. Only the first caller releases the chunks.
+     */
+    public Rebalancer retire()
+    {
+        if(!retiredChunks.compareAndSet(false, true)) return this;
+
+        for(Chunk<K,V> chunk : getEngagedChunks()){
+            chunk.release();
+        }
+
+        return this;
+    }
+
     public boolean isCompacted()
     {
         return compactedChunks.get() != null;
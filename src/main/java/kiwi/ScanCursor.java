@@ -0,0 +1,59 @@
+package kiwi;
+
+import kiwi.ThreadData.ScanData;
+
+/**
+ * Resume token of a bounded scan (see KiWi.scan(result, min, max, limit)) - holds the scan's pinned version
+ * and the key of the last value copied, so the next page continues right after it, at the same version.
+ * The scan's version stays published (so rebalances keep the items it needs) until the scan is done
+ * or the cursor is closed - a cursor which is abandoned before the end of its range (e.g., paging stopped midway)
+ * should be closed, otherwise the version stays published until the cursor is collected.
+ */
+public class ScanCursor<K extends Comparable<? super K>,V> implements AutoCloseable
+{
+	private final KiWi<K,V>			kiwi;
+	private ScanData<K,V>			scan;		// published scan data, null once the scan is done
+	final K							maxKey;		// max key (inclusive) for this scan
+	final int						version;	// version for this scan - larger versions are ignored
+
+	K								lastKey;	// key of the last value copied so far, null before the first value
+	int								count;		// # of values copied by the last page
+
+	ScanCursor(KiWi<K,V> kiwi, ScanData<K,V> scan, K max, int version)
+	{
+		this.kiwi = kiwi;
+		this.scan = scan;
+		this.maxKey = max;
+		this.version = version;
+	}
+
+	public K getLastKey()
+	{
+		return lastKey;
+	}
+	public int getVersion()
+	{
+		return version;
+	}
+	/** @return # of values copied by the last page */
+	public int getCount()
+	{
+		return count;
+	}
+	/** @return true if the range was scanned to its end (or the cursor was closed) - no more pages */
+	public boolean isDone()
+	{
+		return (scan == null);
+	}
+
+	/** ends the scan - no more pages can be read, and the scan's version is no longer published */
+	@Override
+	public void close()
+	{
+		if (scan != null)
+		{
+			kiwi.endScan(scan);
+			scan = null;
+		}
+	}
+}
@@ -4,14 +4,15 @@ import kiwi.ThreadData.ScanData;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * Created by dbasin on 11/30/15.
  */
 public class ScanIndex<K extends Comparable<? super K>> {
     private int[] scanVersions;
-    private int[] fromKeys;
-    private int[] toKeys;
+    private List<K> fromKeys;
+    private List<K> toKeys;
 
     //private ScanData[] scans;
     boolean isFirst;
@@ -19,40 +20,42 @@ public class ScanIndex<K extends Comparable<? super K>> {
 
     private int index;
     private int numOfVersions;
-    private Integer min;
-    private Integer max;
-    private int currKey;
 
-    public ScanIndex(ArrayList<ScanData> scans, int currVersion, K minKey, K maxKey)
+    // current key is the key of an item in a chunk - compared in place, without reading it
+    private Chunk<K,?> currChunk;
+    private int currItem;
+
+    /***
+     * @param minKey -- min key of the compacted range, null if unbounded
+     * @param maxKey -- max key of the compacted range, null if unbounded
+     */
+    public ScanIndex(ArrayList<ScanData<K,?>> scans, int currVersion, K minKey, K maxKey)
     {
         //this.scans = scans;
         this.scanVersions = new int[scans.size()];
-        this.fromKeys = new int[scans.size()];
-        this.toKeys = new int[scans.size()];
+        this.fromKeys = new ArrayList<>(scans.size());
+        this.toKeys = new ArrayList<>(scans.size());
 
         this.numOfVersions = 0;
 
-        this.min = (minKey != null) ? (Integer)minKey : Integer.MIN_VALUE;
-        this.max = (maxKey != null) ? (Integer)maxKey : Integer.MAX_VALUE;
-
         //noinspection Since15
-        scans.sort(new Comparator<ScanData>() {
+        scans.sort(new Comparator<ScanData<K,?>>() {
             @Override
-            public int compare(ScanData o1, ScanData o2) {
+            public int compare(ScanData<K,?> o1, ScanData<K,?> o2) {
                 return o2.version.get() - o1.version.get();
             }
         });
 
         //for(int i = 0; i < scans.length; ++i)
-        for(ScanData sd: scans)
+        for(ScanData<K,?> sd: scans)
         {
             if(sd == null) continue;
-            if(sd.max.compareTo(min) < 0) continue;
-            if(sd.min.compareTo(max) > 0) continue;
+            if(minKey != null && sd.max.compareTo(minKey) < 0) continue;
+            if(maxKey != null && sd.min.compareTo(maxKey) > 0) continue;
 
             scanVersions[numOfVersions] = sd.version.get();
-            fromKeys[numOfVersions] = (int) sd.min;
-            toKeys[numOfVersions] = (int) sd.max;
+            fromKeys.add(sd.min);
+            toKeys.add(sd.max);
             numOfVersions++;
         }
 
@@ -70,14 +73,20 @@ public class ScanIndex<K extends Comparable<? super K>> {
             scanVersions[scanVersions.length - i - 1] = temp;
         }
 */
-        reset(-1);
+        reset(null, Chunk.NONE);
     }
 
-    public final void reset(int key)
+    /***
+     * Starts checking versions of a new key.
+     * @param chunk -- the chunk holding the key
+     * @param item -- index of an item with the key in chunk's order array
+     */
+    public final void reset(Chunk<K,?> chunk, int item)
     {
         index = -1;
         isFirst = true;
-        currKey = key;
+        currChunk = chunk;
+        currItem = item;
     }
 
     /***
@@ -92,13 +101,32 @@ public class ScanIndex<K extends Comparable<? super K>> {
         if(isFirst) return true;
         if(index >= numOfVersions) return false;
 
-        if(fromKeys[index] > currKey) return false;
-        if(toKeys[index] < currKey) return false;
+        if(currChunk.compareKey(currItem, fromKeys.get(index)) < 0) return false;
+        if(currChunk.compareKey(currItem, toKeys.get(index)) > 0) return false;
 
         return scanVersions[index] >= version;
 
     }
 
+    /***
+     * @param version -- version of a range removal
+     * @return true if a scan overlapping [minKey, maxKey] has a smaller version -- it still needs the
+     * items the removal removed
+     */
+    public final boolean hasScanBefore(int version, K minKey, K maxKey)
+    {
+        for(int i = 0; i < numOfVersions; ++i)
+        {
+            if(scanVersions[i] >= version) continue;
+            if(toKeys.get(i).compareTo(minKey) < 0) continue;
+            if(fromKeys.get(i).compareTo(maxKey) > 0) continue;
+
+            return true;
+        }
+
+        return false;
+    }
+
     public final void savedVersion(int version)
     {
         isFirst = false;
@@ -1,107 +1,142 @@
 package kiwi;
 
 import kiwi.ThreadData.PutData;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kiwi.ThreadData.ScanData;
 
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.SortedMap;
 
-public class ScanIterator<K extends Comparable<? super K>,V> implements Iterator<V>
+/**
+ * Iterator over the values of a key range, at the version pinned when it was created (see KiWi.scan(min, max)).
+ * Chunks are read lazily, one at a time - items of the current chunk are merged with the chunk's pending puts,
+ * so memory doesn't grow with the size of the range.
+ * The scan's version stays published (so rebalances keep the items it needs) until the iterator is
+ * exhausted or closed - an iterator which is abandoned before its end should be closed, otherwise the version
+ * stays published until the iterator is collected.
+ */
+public class ScanIterator<K extends Comparable<? super K>,V> implements Iterator<V>, AutoCloseable
 {
-	private final K 							maxKey;	// max key (inclusive) for this scan - beyond it the iterator is finished
+	private final KiWi<K,V>						kiwi;
+	private ScanData<K,V>						scan;	// published scan data, null once the scan ended
+	private final K 							minKey;	// min key (inclusive) for this scan
+	private final K 							maxKey;	// max key for this scan - beyond it the iterator is finished
+	private final boolean						maxInclusive;	// false if max key itself is beyond the scan
 	private final int							version;// version for this scan- larger versions are ignored
-	private final SortedMap<K,PutData<K,V>>		items;	// items map - for items that are currently added (from thread-array)
-	private final Iterator<K>					iter;	// iterator over items map keys
-	
+
 	private Chunk<K,V>							chunk;	// current chunk, or 'null' if no more items from chunks
-	
-	private K									keyItems; // key of current item (next to be returned) in items map
-	private K									keyChunk; // key of current item from the chunks
-	private int									idxChunk; // index of current item in current chunk
+	private SortedMap<K,PutData<K,V>>			items;	// items map - for items that are currently added (from thread-array)
+	private Iterator<K>							iter;	// iterator over items map keys
+
+	private K									keyItems; // key of current item (next to be returned) in items map, null if done
+	private K									keyChunk; // key of current item from the chunk
+	private int									idxChunk; // index of current item in current chunk, NONE if done
 	private V									nextVal;  // next value that should be returned, null if done
-	
-	public ScanIterator(K min, K max, int version, Chunk<K,V> chunk, SortedMap<K,PutData<K,V>> items)
+
+	ScanIterator(KiWi<K,V> kiwi, ScanData<K,V> scan, K min, K max, int version, Chunk<K,V> chunk)
+	{
+		this(kiwi, scan, min, max, true, version, chunk);
+	}
+
+	/** @param scan	published scan data, which is removed once the iterator is done - or null, if the scan
+	 * 				data is owned by someone else (e.g., the spliterator the iterator is part of) */
+	ScanIterator(KiWi<K,V> kiwi, ScanData<K,V> scan, K min, K max, boolean maxInclusive, int version, Chunk<K,V> chunk)
 	{
+		this.kiwi = kiwi;
+		this.scan = scan;
+		this.minKey = min;
 		this.maxKey = max;
+		this.maxInclusive = maxInclusive;
 		this.version = version;
-		this.items = items;
-		
-		this.chunk = chunk;		
-		this.iter = items.keySet().iterator();
-		
-		// find first items in the data structure (chunks)
-		// get the first index equal or larger-than minKey (matching version)
-		idxChunk = chunk.findFirst(min, version);
-		handleChunksItem();
-		
-		// find first item in the thread-array (items map)
-		// the items map is a sorted map, so just get the first item-- if it exists
-		if (iter.hasNext())
-			keyItems = iter.next();
-		
+
+		// find first items in the data structure (chunks) and in the first chunk's items map
+		enterChunk(chunk, true);
+
 		// update next value to hold first actual (non-deleted) value
 		updateNextValue();
 	}
-	
-	/** handles current chunk item - proceeding to next chunk if needed (item is NONE), and updating keyChunks */
-	private void handleChunksItem()
+
+	/** starts iterating over given chunk - proceeding to the next chunks while they have no matching items */
+	private void enterChunk(Chunk<K,V> c, boolean first)
 	{
-		while (idxChunk == Chunk.NONE)
+		while (true)
 		{
-			// proceed to next chunk
-			chunk = chunk.next.getReference();
-			
-			// if no next chunk - we're done
-			if (chunk == null)
+			// if no chunk, or chunk's min key is too large - we're done
+			if ((c == null) || isBeyondMax(c.minKey))
 			{
-				break;
-			}
-			// otherwise check first item in chunk
-			else
-			{
-				// if chunk's min key isn't too large - find matching item in it
-				if (chunk.minKey.compareTo(maxKey) <= 0)
-				{
-					idxChunk = chunk.getFirst(version);
-				}
-				// otherwise we're done, nullify chunk variable
-				else
-				{
-					chunk = null;
-					break;
-					
-				}
-			}
-		}
-		
-		// if some item was found, update chunk key variable for "merge-sort" in next() method
-		if (chunk != null)
-		{
-			keyChunk = chunk.readKey(idxChunk);
-			
-			// make sure we didn't exceed max key
-			if (keyChunk.compareTo(maxKey) > 0)
 				chunk = null;
+				endScan();
+				return;
+			}
+
+			chunk = c;
+
+			// help pending put ops (and range removals) set a version - and get them in a sorted map, to merge with the chunk's items
+			// (so old put() op doesn't suddently set an old version this scan() needs to see,
+			//  but after the scan() passed it)
+			kiwi.helpRemoveRange(c);
+			items = c.helpPutInScan(version, minKey, maxKey);
+			iter = items.keySet().iterator();
+			nextItemsKey();
+
+			// get the first index equal or larger-than minKey (matching version)
+			idxChunk = first ? c.findFirst(minKey, version) : c.getFirst(version);
+			updateChunkKey();
+
+			if ((idxChunk != Chunk.NONE) || (keyItems != null))
+				return;
+
+			// otherwise chunk has no matching items - check next chunk
+			c = c.next.getReference();
+			first = false;
 		}
 	}
 
+	/** updates chunk key variable for "merge-sort" in getNextValue() - or stops reading the chunk if beyond max key */
+	private void updateChunkKey()
+	{
+		if (idxChunk == Chunk.NONE)
+			return;
+
+		keyChunk = chunk.readKey(idxChunk);
+
+		// make sure we didn't exceed max key
+		if (isBeyondMax(keyChunk))
+			idxChunk = Chunk.NONE;
+	}
+
+	/** proceeds to next key of items map - keys of the items map are unique */
+	private void nextItemsKey()
+	{
+		keyItems = iter.hasNext() ? iter.next() : null;
+
+		// make sure we didn't exceed max key (the items map is sorted, so no more items)
+		if ((keyItems != null) && isBeyondMax(keyItems))
+			keyItems = null;
+	}
+
+	private boolean isBeyondMax(K key)
+	{
+		int cmp = key.compareTo(maxKey);
+		return maxInclusive ? (cmp > 0) : (cmp >= 0);
+	}
+
 	private boolean hasNextValue()
 	{
-		return ((chunk != null) || (keyItems != null));
+		return (chunk != null);
 	}
-	
+
 	@Override
 	public boolean hasNext()
 	{
 		return (nextVal != null);
 	}
-	
+
 	private void updateNextValue()
 	{
 		// reset next value to null, to start searching for an actual (non-deleted) next value
 		nextVal = null;
-		
+
 		// find next value, while skipping null (i.e., deleted) items/values
 		while ((nextVal == null) && (hasNextValue()))
 		{
@@ -114,126 +149,129 @@ public class ScanIterator<K extends Comparable<? super K>,V> implements Iterator
 	{
 		if (nextVal == null)
 			throw new NoSuchElementException();
-		
+
 		// set to return our next-value
 		V retVal = nextVal;
-		
+
 		// update next value to actual (non-deleted) next value
 		updateNextValue();
-		
+
 		// return previously-stored value
 		return retVal;
 	}
-	
+
+	/** @return value of the next key (null if it was removed) - proceeding to next chunk once current one is done */
 	private V getNextValue()
 	{
-		/*
+		V val;
+
 		// "merge-sort" chunk items and sortedmap items
-		// no items (hasNext() is false), so this is an error
-		if ((chunk == null) && (keyItems == null))
-		{
-			return null;
-		}
-		// items map finished - return from chunks
-		else if (keyItems == null)
+		// items map finished - return from chunk
+		if (keyItems == null)
 		{
-			return nextFromChunks();
+			val = nextFromChunk();
 		}
-		// chunks items finished - return from items map
-		else if (chunk == null)
+		// chunk items finished - return from items map
+		else if (idxChunk == Chunk.NONE)
 		{
-			return nextFromMap();
+			val = getData(nextFromMap());
 		}
 		// both have items - compare keys
 		else
 		{
 			int cmp = keyChunk.compareTo(keyItems);
-			
-			// chunks key is smaller
+
+			// chunk key is smaller
 			if (cmp < 0)
-				return nextFromChunks();
+				val = nextFromChunk();
 			// items map key is smaller
-			if (cmp > 0)
-				return nextFromMap();
-			
-			// keys are equal - check versions
-			PutData<K,V> pd = items.get(keyItems);
-			int verChunk = chunk.getVersion(idxChunk);
-			int verItems = pd.chunk.getVersion(pd.orderIndex);
-			
-			// we move both next since they're the same item - both need to proceed and only one should be returned
-			V valChunk = nextFromChunks();
-			V valItems = nextFromMap();
-			
-			// chunk's version is newer
-			if (verChunk > verItems)
-				return valChunk;
-			// items map version is newer
-			else if (verChunk < verItems)
-				return valItems;
-			
-			// if PutData's chunk is different- then chunks item is newer
-			if (pd.chunk != chunk)
-				return valChunk;
-			
-			// otherwise in same chunk - decide according to item index
-			if (idxChunk > pd.orderIndex)
-				return valChunk;
+			else if (cmp > 0)
+				val = getData(nextFromMap());
+			// keys are equal - both need to proceed and only the newer should be returned
 			else
-				return valItems;
+				val = nextFromBoth();
 		}
-		*/
-		throw new NotImplementedException();
+
+		// proceed to next chunk once current one is done
+		if ((idxChunk == Chunk.NONE) && (keyItems == null))
+			enterChunk(chunk.next.getReference(), false);
+
+		return val;
+	}
+
+	private V getData(PutData<K,V> pd)
+	{
+		return chunk.getData(pd.orderIndex, version);
+	}
+
+	private V nextFromBoth()
+	{
+		PutData<K,V> pd = nextFromMap();
+		int idx = idxChunk;
+
+		// check versions - items map holds only puts into the current chunk
+		int verChunk = chunk.getVersion(idx);
+		int verItems = chunk.getVersion(pd.orderIndex);
+
+		nextFromChunk();
+
+		// chunk's version is newer
+		if (verChunk > verItems)
+			return chunk.getData(idx, version);
+		// items map version is newer
+		else if (verChunk < verItems)
+			return getData(pd);
+
+		// same versions - decide according to item index
+		return chunk.getData(Math.max(idx, pd.orderIndex), version);
 	}
-	
-	private V nextFromMap()
+
+	/** proceeds to next key in items map
+	 * @return put data of current key */
+	private PutData<K,V> nextFromMap()
 	{
-		/*
 		PutData<K,V> pd = items.get(keyItems);
+		nextItemsKey();
 
-		while (true)
-		{
-			if (iter.hasNext())
-			{
-				K oldKey = keyItems;
-				keyItems = iter.next();
-				
-				if (oldKey.compareTo(keyItems) != 0)
-					break;
-			}
-			else
-			{
-				keyItems = null;
-				break;
-			}
-		}
-		
-		return pd.chunk.getData(pd.orderIndex);
-		*/
-		throw new NotImplementedException();
+		return pd;
 	}
-	private V nextFromChunks()
+
+	/** proceeds to next key in chunk
+	 * @return value of current key */
+	private V nextFromChunk()
 	{
-		V val = chunk.getData(idxChunk);
-		
+		V val = chunk.getData(idxChunk, version);
+
 		// if last key was max, no need to search further
 		if (keyChunk.compareTo(maxKey) == 0)
 		{
-			chunk = null;
+			idxChunk = Chunk.NONE;
 		}
-		// otherwise find next key in chunks and handle it
+		// otherwise find next key in chunk and handle it
 		else
 		{
 			idxChunk = chunk.findNext(idxChunk, version, keyChunk);
-			handleChunksItem();
+			updateChunkKey();
 		}
 
 		return val;
 	}
-	
+
+	/** ends the scan - the remaining values are not returned, and the scan's version is no longer published */
 	@Override
-	public void remove()
+	public void close()
 	{
-		throw new NotImplementedException();
+		chunk = null;
+		nextVal = null;
+		endScan();
+	}
+
+	private void endScan()
+	{
+		if (scan != null)
+		{
+			kiwi.endScan(scan);
+			scan = null;
+		}
 	}
 }
@@ -0,0 +1,150 @@
+package kiwi;
+
+import kiwi.ThreadData.ScanData;
+
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the values of a key range, at a version pinned when the top-level spliterator was created
+ * (see KiWi.spliterator(min, max)) - so a parallel stream or fork-join task reads one snapshot on all workers.
+ * Splits are made at chunk boundaries, found through KiWi's index, and each part is read lazily (chunk by chunk)
+ * by a ScanIterator.
+ * All parts share a single published scan data, which is removed once all parts are exhausted, or once
+ * the spliterator (or the stream built on it) is closed. Parts left unread (e.g., by findFirst, anyMatch or limit)
+ * keep it published until all parts are collected.
+ */
+public class ScanSpliterator<K extends Comparable<? super K>,V> implements Spliterator<V>, AutoCloseable
+{
+	private final KiWi<K,V>				kiwi;
+	private final ScanData<K,V>			scan;		// published scan data, shared by all parts
+	private final AtomicInteger			parts;		// # of parts which are not exhausted yet, shared by all parts (see getOwner)
+	private final int					version;	// version for this scan - larger versions are ignored
+
+	private K							minKey;		// min key (inclusive) of this part - updated when the part is split
+	private final K						maxKey;		// max key of this part
+	private final boolean				maxInclusive;	// true for the last part only - others end at a chunk's min key
+
+	private ScanIterator<K,V>			iter;		// created on first advance, so splitting doesn't read chunks
+	private boolean						finished;	// true once this part was exhausted
+	private long						estimate;	// estimated # of values, -1 if not computed yet
+
+	ScanSpliterator(KiWi<K,V> kiwi, ScanData<K,V> scan, int version, K min, K max)
+	{
+		this(kiwi, scan, new AtomicInteger(1), version, min, max, true);
+	}
+
+	private ScanSpliterator(KiWi<K,V> kiwi, ScanData<K,V> scan, AtomicInteger parts, int version,
+			K min, K max, boolean maxInclusive)
+	{
+		this.kiwi = kiwi;
+		this.scan = scan;
+		this.parts = parts;
+		this.version = version;
+		this.minKey = min;
+		this.maxKey = max;
+		this.maxInclusive = maxInclusive;
+		this.estimate = -1;
+	}
+
+	/** @return object shared by all parts of the spliterator - it's collected once none of the parts is reachable,
+	 * so it's the owner of the scan (see KiWi.watchScan) */
+	Object getOwner()
+	{
+		return parts;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super V> action)
+	{
+		if (finished)
+			return false;
+
+		if (iter == null)
+			iter = kiwi.scanPart(version, minKey, maxKey, maxInclusive);
+
+		if (iter.hasNext())
+		{
+			action.accept(iter.next());
+			return true;
+		}
+
+		finish();
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super V> action)
+	{
+		if (finished)
+			return;
+
+		if (iter == null)
+			iter = kiwi.scanPart(version, minKey, maxKey, maxInclusive);
+
+		while (iter.hasNext())
+			action.accept(iter.next());
+
+		finish();
+	}
+
+	/** splits off the first half of the chunks in this part (before it's read)
+	 * @return the first half, or null if this part was already read or holds less than 2 chunks */
+	@Override
+	public Spliterator<V> trySplit()
+	{
+		if ((iter != null) || finished)
+			return null;
+
+		K splitKey = kiwi.findSplitKey(minKey, maxKey, maxInclusive);
+		if (splitKey == null)
+			return null;
+
+		// count the new part before it's returned, so the scan isn't ended while it's still unread
+		parts.incrementAndGet();
+
+		// the new part is the prefix [minKey, splitKey) - this part keeps [splitKey, maxKey]
+		ScanSpliterator<K,V> prefix = new ScanSpliterator<>(kiwi, scan, parts, version, minKey, splitKey, false);
+		this.minKey = splitKey;
+
+		if (estimate >= 0)
+		{
+			estimate /= 2;
+			prefix.estimate = estimate;
+		}
+
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize()
+	{
+		if (estimate < 0)
+			estimate = kiwi.estimateSize(minKey, maxKey, maxInclusive);
+
+		return estimate;
+	}
+
+	@Override
+	public int characteristics()
+	{
+		return ORDERED | NONNULL;
+	}
+
+	private void finish()
+	{
+		finished = true;
+
+		// last part to finish ends the scan
+		if (parts.decrementAndGet() == 0)
+			close();
+	}
+
+	/** ends the scan of all parts - the scan's version is no longer published */
+	@Override
+	public void close()
+	{
+		kiwi.endScan(scan);
+	}
+}
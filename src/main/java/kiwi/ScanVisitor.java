@@ -0,0 +1,12 @@
+package kiwi;
+
+/**
+ * Callback of a visitor scan (see KiWi.scan(min, max, visitor)) - receives each visible item of the range,
+ * in key order, and may stop the scan.
+ */
+public interface ScanVisitor<K,V>
+{
+	/** @param version	version of the item (at most the scan's version)
+	 * @return false to stop the scan */
+	boolean visit(K key, V value, int version);
+}
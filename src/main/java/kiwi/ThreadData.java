@@ -23,13 +23,47 @@ public abstract class ThreadData
 	/** Thread data class for Put operations **/
 	public static class PutData<K extends Comparable<? super K>,V> extends ThreadData
 	{
-		//public final Chunk<K,V>	chunk;
+		/** expected data index of an unconditional put - never a valid data index */
+		public static final int	UNCONDITIONAL = Integer.MIN_VALUE;
+
+		public final Chunk<K,V>	chunk;		// thread arrays of puts are shared by all chunks
 		public final int		orderIndex;
+		public final int		expected;	// data index of the key's previous version, if the put is conditional
+		public final int		count;		// # of items - more than 1 for a run of a batch put (see KiWi.putBatch)
+		public final AtomicInteger	runVersion;	// version shared by all items of a run, null if not a run
 		
 		public PutData(Chunk<K,V> chunk, int orderIndex)
 		{
-			//this.chunk = chunk;
+			this(chunk, orderIndex, UNCONDITIONAL);
+		}
+
+		public PutData(Chunk<K,V> chunk, int orderIndex, int expected)
+		{
+			this.chunk = chunk;
+			this.orderIndex = orderIndex;
+			this.expected = expected;
+			this.count = 1;
+			this.runVersion = null;
+		}
+
+		/** put data of a run - count items allocated together (consecutive in order-array), sorted by key */
+		public static <K extends Comparable<? super K>,V> PutData<K,V> run(Chunk<K,V> chunk, int orderIndex, int count)
+		{
+			return new PutData<>(chunk, orderIndex, count, new AtomicInteger(Chunk.NONE));
+		}
+
+		private PutData(Chunk<K,V> chunk, int orderIndex, int count, AtomicInteger runVersion)
+		{
+			this.chunk = chunk;
 			this.orderIndex = orderIndex;
+			this.expected = UNCONDITIONAL;
+			this.count = count;
+			this.runVersion = runVersion;
+		}
+
+		public boolean isRun()
+		{
+			return runVersion != null;
 		}
 	}
 }
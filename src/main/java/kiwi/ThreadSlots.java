@@ -0,0 +1,135 @@
+package kiwi;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of thread slots - each thread which operates on KiWi leases a unique slot in [0, MAX_THREADS),
+ * used as its index in the thread arrays (putArray shared by all chunks, scanArray of KiWi).
+ * Slots are leased from a lock-free free-list, and returned to it once their thread exits.
+ * Slots are leased lowest-first, so thread arrays only need to be read up to bound().
+ *
+ * KiWi.MAX_THREADS bounds the number of concurrently live threads, and must be set before the first chunk is created.
+ */
+public final class ThreadSlots
+{
+	private static final int										capacity = KiWi.MAX_THREADS;
+	private static final AtomicReferenceArray<WeakReference<Thread>>	owners = new AtomicReferenceArray<>(capacity);
+
+	private static final AtomicInteger	nextUnused = new AtomicInteger(0);	// slots below it were leased at least once
+	private static final AtomicLong		freeHead = new AtomicLong(pack(0, -1));	// free-list of returned slots
+	private static final int[]			nextFree = new int[capacity];
+
+	private static final ThreadLocal<Integer> slot = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return lease(Thread.currentThread());
+		}
+	};
+
+	private ThreadSlots() {}
+
+	/** @return the slot of the current thread (leased on first call) */
+	public static int get()
+	{
+		return slot.get();
+	}
+
+	/** @return # of slots - thread arrays are sized by it */
+	public static int capacity()
+	{
+		return capacity;
+	}
+
+	/** @return upper bound (exclusive) of leased slots - thread arrays need not be read beyond it */
+	public static int bound()
+	{
+		return Math.min(nextUnused.get(), capacity);
+	}
+
+	private static int lease(Thread thread)
+	{
+		while (true)
+		{
+			int s = pop();
+			if (s < 0)
+			{
+				// return slots of exited threads to free-list, so they are reused before unused slots
+				if (reclaim())
+					continue;
+
+				s = nextUnused.getAndIncrement();
+			}
+
+			if (s < capacity)
+			{
+				owners.set(s, new WeakReference<>(thread));
+				return s;
+			}
+
+			// all slots are leased by live threads (unless a concurrent lease has just returned some)
+			nextUnused.set(capacity);
+			if ((int) freeHead.get() < 0)
+				throw new IllegalStateException("More than " + capacity + " live threads operate on KiWi");
+		}
+	}
+
+	/** returns slots of threads which are no longer alive (the owner reference is weak, so slots of
+	 * threads that were already collected are returned as well)
+	 * @return true if at least one slot was returned */
+	private static boolean reclaim()
+	{
+		boolean reclaimed = false;
+
+		for (int i = 0, n = bound(); i < n; ++i)
+		{
+			WeakReference<Thread> owner = owners.get(i);
+			if (owner == null)
+				continue;
+
+			Thread t = owner.get();
+			if (((t == null) || !t.isAlive()) && owners.compareAndSet(i, owner, null))
+			{
+				push(i);
+				reclaimed = true;
+			}
+		}
+
+		return reclaimed;
+	}
+
+	/***************	Free-list (Treiber stack, with a stamp against ABA)	***************/
+
+	private static long pack(int stamp, int s)
+	{
+		return ((long) stamp << 32) | (s & 0xFFFFFFFFL);
+	}
+
+	private static void push(int s)
+	{
+		while (true)
+		{
+			long head = freeHead.get();
+			nextFree[s] = (int) head;
+
+			if (freeHead.compareAndSet(head, pack((int) (head >>> 32) + 1, s)))
+				return;
+		}
+	}
+
+	private static int pop()
+	{
+		while (true)
+		{
+			long head = freeHead.get();
+			int s = (int) head;
+			if (s < 0)
+				return -1;
+
+			if (freeHead.compareAndSet(head, pack((int) (head >>> 32) + 1, nextFree[s])))
+				return s;
+		}
+	}
+}
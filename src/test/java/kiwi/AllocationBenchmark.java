@@ -0,0 +1,99 @@
+package kiwi;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated per get/put operation, through the allocated-bytes counter of the current thread
+ * (HotSpot's com.sun.management.ThreadMXBean). Each operation is measured over a few rounds, the first ones being
+ * warm-up, so the last rounds show the compiled code.
+ * Run with: java -cp target/classes:target/test-classes kiwi.AllocationBenchmark [ops per round]
+ */
+public class AllocationBenchmark
+{
+	private static final int	KEYS = 200000;
+	private static final int	ROUNDS = 5;
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	/** a measured operation - the i-th call of a round */
+	private interface Op
+	{
+		long run(int i);
+	}
+
+	public static void main(String[] args)
+	{
+		final int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap.PrimitiveValues = (type == 1);
+			KiWiMap.OffHeap = (type == 2);
+			String chunks = (type == 0) ? "heap" : (type == 1) ? "primitive" : "off-heap";
+
+			final KiWiMap map = new KiWiMap();
+			final Integer[] keys = new Integer[KEYS];
+			for (int i = 0; i < KEYS; ++i)
+			{
+				keys[i] = i * 2;
+				map.put(keys[i], i);
+			}
+
+			// keys are pre-boxed for get(), so only the operation itself is measured
+			measure(chunks + " get", ops, new Op() {
+				@Override
+				public long run(int i) {
+					Integer val = map.get(keys[(int) ((i * 7919L) % KEYS)]);
+					return (val == null) ? 0 : val;
+				}
+			});
+
+			// keys in the Integer cache are not boxed by the index lookup
+			measure(chunks + " getInt (cached keys)", ops, new Op() {
+				@Override
+				public long run(int i) {
+					return map.getInt(i & 127);
+				}
+			});
+			measure(chunks + " getInt", ops, new Op() {
+				@Override
+				public long run(int i) {
+					return map.getInt((int) ((i * 7919L) % (KEYS * 2)));
+				}
+			});
+			measure(chunks + " putInt", ops, new Op() {
+				@Override
+				public long run(int i) {
+					map.putInt((int) ((i * 7919L) % (KEYS * 2)), i);
+					return 0;
+				}
+			});
+
+			map.close();
+		}
+
+		KiWiMap.PrimitiveValues = false;
+		KiWiMap.OffHeap = false;
+	}
+
+	private static void measure(String name, int ops, Op op)
+	{
+		long threadId = Thread.currentThread().getId();
+		long sum = 0;
+
+		StringBuilder rounds = new StringBuilder();
+		for (int r = 0; r < ROUNDS; ++r)
+		{
+			long start = threads.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < ops; ++i)
+				sum += op.run(i);
+			long end = threads.getThreadAllocatedBytes(threadId);
+
+			rounds.append(String.format(" %8.3f", (double) (end - start) / ops));
+		}
+
+		// the sum is printed so the measured calls are not optimized away
+		System.out.println(String.format("%-32s B/op:%s  (%d)", name, rounds, sum));
+	}
+}
@@ -0,0 +1,100 @@
+package kiwi;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Range scans of int chunks (heap, primitive and off-heap) - ranges below zero, bounds which fall between keys,
+ * and removed keys, both in the unsorted part of a chunk and after compaction.
+ */
+public class ChunkIntScanTest
+{
+	@After
+	public void resetChunkType()
+	{
+		KiWiMap.PrimitiveValues = false;
+		KiWiMap.OffHeap = false;
+	}
+
+	/** @return new map of the given chunk type: 0 - heap, 1 - primitive values, 2 - off-heap */
+	private static KiWiMap newMap(int type)
+	{
+		KiWiMap.PrimitiveValues = (type == 1);
+		KiWiMap.OffHeap = (type == 2);
+		return new KiWiMap();
+	}
+
+	@Test
+	public void scansNegativeRange()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type);
+			for (int k = -50; k < 50; ++k)
+				map.put(k, k * 10);
+
+			for (int compacted = 0; compacted < 2; ++compacted)
+			{
+				int[] result = new int[10];
+				assertEquals(5, map.scan(result, -20, -16));
+				assertArrayEquals(new int[] {-200, -190, -180, -170, -160, 0, 0, 0, 0, 0}, result);
+
+				map.compactAllSerial();
+			}
+			map.close();
+		}
+	}
+
+	@Test
+	public void stopsAtMaxBetweenKeys()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type);
+			for (int k = 0; k < 100; k += 10)
+				map.put(k, k);
+
+			for (int compacted = 0; compacted < 2; ++compacted)
+			{
+				Integer[] result = new Integer[10];
+				assertEquals(3, map.getRange(result, 15, 45));
+				assertArrayEquals(new Integer[] {20, 30, 40, null, null, null, null, null, null, null}, result);
+
+				int[] ints = new int[10];
+				assertEquals(3, map.scan(ints, 15, 45));
+
+				map.compactAllSerial();
+			}
+			map.close();
+		}
+	}
+
+	@Test
+	public void skipsRemovedKeys()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type);
+			for (int k = 0; k < 20; ++k)
+				map.put(k, k);
+			for (int k = 0; k < 20; k += 2)
+				map.put(k, k + 100);
+			for (int k = 0; k < 20; k += 4)
+				map.remove(k);
+
+			for (int compacted = 0; compacted < 2; ++compacted)
+			{
+				int[] result = new int[20];
+				assertEquals(15, map.scan(result, 0, 19));
+				assertArrayEquals(new int[] {1, 102, 3, 5, 106, 7, 9, 110, 11, 13, 114, 15, 17, 118, 19, 0, 0, 0, 0, 0},
+						result);
+
+				map.compactAllSerial();
+			}
+			map.close();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package kiwi;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Conditional puts (putIfAbsent, compute/merge/addAndGet, replace) racing on shared keys - while other threads
+ * fill the chunks (so they're rebalanced) and scan them (so rebalances keep old versions).
+ */
+public class ConditionalPutTest
+{
+	private static final int	THREADS = 8;
+	private static final int	BACKGROUND_KEYS = 200000;	// keys put by the background thread - beyond the tested keys
+
+	private final AtomicBoolean					done = new AtomicBoolean();
+	private final AtomicReference<Throwable>	error = new AtomicReference<>();
+	private final List<Thread>					background = new ArrayList<>();
+
+	@After
+	public void resetChunkType()
+	{
+		KiWiMap.PrimitiveValues = false;
+	}
+
+	/** starts a thread which keeps putting keys after the tested ones, and one which scans all keys - until done */
+	private void startBackground(final KiWiMap map, final int firstKey)
+	{
+		background.add(new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; !done.get(); ++i)
+					map.put(firstKey + (i % BACKGROUND_KEYS), i);
+			}
+		});
+		background.add(new Thread() {
+			@Override
+			public void run() {
+				Integer[] result = new Integer[firstKey + BACKGROUND_KEYS];
+				while (!done.get())
+					map.getRange(result, 0, firstKey + BACKGROUND_KEYS);
+			}
+		});
+
+		for (Thread t : background)
+			t.start();
+	}
+
+	/** runs task on THREADS threads (with the thread's id), which start together - and waits for them */
+	private void runThreads(final Task task) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+
+		for (int t = 0; t < THREADS; ++t)
+		{
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run(id);
+					}
+					catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		done.set(true);
+		for (Thread t : background)
+			t.join();
+
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+	}
+
+	private interface Task
+	{
+		void run(int id) throws Exception;
+	}
+
+	@Test
+	public void concurrentAddAndGetSums() throws Exception
+	{
+		for (int type = 0; type < 2; ++type)
+		{
+			KiWiMap.PrimitiveValues = (type == 1);
+			done.set(false);
+			background.clear();
+
+			final int keys = 16;
+			final int increments = 10000;
+			final KiWiMap map = new KiWiMap();
+
+			// each new value of a key is returned exactly once - values[key * (total + 1) + value] counts the returns
+			final int total = THREADS * increments;
+			final AtomicIntegerArray values = new AtomicIntegerArray(keys * (total + 1));
+
+			startBackground(map, keys);
+			runThreads(new Task() {
+				@Override
+				public void run(int id) {
+					for (int i = 0; i < increments; ++i)
+					{
+						int key = (i + id) % keys;
+						values.incrementAndGet(key * (total + 1) + map.addAndGet(key, 1));
+					}
+				}
+			});
+
+			for (int key = 0; key < keys; ++key)
+			{
+				assertEquals(Integer.valueOf(total / keys), map.get(key));
+
+				for (int v = 1; v <= total / keys; ++v)
+					assertEquals("key " + key + " value " + v, 1, values.get(key * (total + 1) + v));
+			}
+		}
+	}
+
+	@Test
+	public void concurrentPutIfAbsentHasOneWinner() throws Exception
+	{
+		final int keys = 20000;
+		final KiWiMap map = new KiWiMap();
+
+		// winners.get(key) counts the threads whose putIfAbsent put the key, losers record the value they found
+		final AtomicIntegerArray winners = new AtomicIntegerArray(keys);
+		final AtomicIntegerArray found = new AtomicIntegerArray(keys * THREADS);
+
+		startBackground(map, keys);
+		runThreads(new Task() {
+			@Override
+			public void run(int id) {
+				// threads go over the keys from different starting points, so they race on all of them
+				for (int i = 0; i < keys; ++i)
+				{
+					int key = (i + id * (keys / THREADS)) % keys;
+					Integer curr = map.putIfAbsent(key, id + 1);
+
+					if (curr == null)
+						winners.incrementAndGet(key);
+					else
+						found.set(key * THREADS + id, curr);
+				}
+			}
+		});
+
+		for (int key = 0; key < keys; ++key)
+		{
+			assertEquals("winners of key " + key, 1, winners.get(key));
+
+			// the winner's value is still the key's value - and all losers found it
+			int value = map.get(key);
+			for (int id = 0; id < THREADS; ++id)
+				assertEquals("key " + key + " thread " + id, (id + 1 == value) ? 0 : value, found.get(key * THREADS + id));
+		}
+	}
+
+	@Test
+	public void concurrentReplaceIncrements() throws Exception
+	{
+		final int keys = 8;
+		final int increments = 5000;
+		final KiWiMap map = new KiWiMap();
+
+		for (int key = 0; key < keys; ++key)
+			assertNull(map.put(key, 0));
+
+		startBackground(map, keys);
+		runThreads(new Task() {
+			@Override
+			public void run(int id) {
+				// compare-and-set loop - replace fails if another thread replaced the value meanwhile
+				for (int i = 0; i < increments; ++i)
+				{
+					int key = (i + id) % keys;
+					Integer curr;
+					do
+					{
+						curr = map.get(key);
+					}
+					while (!map.replace(key, curr, curr + 1));
+				}
+			}
+		});
+
+		for (int key = 0; key < keys; ++key)
+			assertEquals(Integer.valueOf(THREADS * increments / keys), map.get(key));
+	}
+}
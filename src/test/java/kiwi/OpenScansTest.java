@@ -0,0 +1,161 @@
+package kiwi;
+
+import org.junit.Test;
+
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scans which outlive a single call (iterators, cursors, spliterators) keep their version published only while
+ * they're read - scans which are abandoned unclosed are ended once the object reading them is collected.
+ */
+public class OpenScansTest
+{
+	private static final int	KEYS = 10000;
+
+	private static KiWiMap newMap()
+	{
+		KiWiMap map = new KiWiMap();
+		for (int k = 0; k < KEYS; ++k)
+			map.put(k, k);
+
+		return map;
+	}
+
+	/** runs the GC until the open scans of kiwi are at most the given bound - fails if they don't drop */
+	static void assertReleased(KiWi<?,?> kiwi, int bound) throws InterruptedException
+	{
+		for (int i = 0; (i < 100) && (kiwi.countOpenScans() > bound); ++i)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		assertTrue("open scans: " + kiwi.countOpenScans(), kiwi.countOpenScans() <= bound);
+	}
+
+	@Test
+	public void abandonedIteratorsAreReleased() throws InterruptedException
+	{
+		KiWiMap map = newMap();
+
+		for (int i = 0; i < 10000; ++i)
+		{
+			ScanIterator<Integer,Integer> iter = map.scan(0, KEYS - 1);
+			assertEquals(Integer.valueOf(0), iter.next());
+		}
+
+		assertReleased(map.kiwi, 0);
+	}
+
+	@Test
+	public void closedAndExhaustedIteratorsAreEnded()
+	{
+		KiWiMap map = newMap();
+
+		ScanIterator<Integer,Integer> closed = map.scan(0, KEYS - 1);
+		closed.next();
+		closed.close();
+
+		ScanIterator<Integer,Integer> exhausted = map.scan(0, 99);
+		while (exhausted.hasNext())
+			exhausted.next();
+
+		assertEquals(0, map.kiwi.countOpenScans());
+	}
+
+	@Test
+	public void readIteratorKeepsItsVersion() throws InterruptedException
+	{
+		KiWiMap map = newMap();
+		ScanIterator<Integer,Integer> iter = map.scan(0, KEYS - 1);
+
+		// newer versions of all keys - chunks fill up, and are rebalanced, while the iterator is still read
+		for (int i = 1; i <= 5; ++i)
+			for (int k = 0; k < KEYS; ++k)
+				map.put(k, -i);
+		System.gc();
+
+		assertEquals(1, map.kiwi.countOpenScans());
+
+		int count = 0;
+		while (iter.hasNext())
+			assertEquals(Integer.valueOf(count++), iter.next());
+
+		assertEquals(KEYS, count);
+		assertEquals(0, map.kiwi.countOpenScans());
+	}
+
+	@Test
+	public void abandonedCursorsAreReleased() throws InterruptedException
+	{
+		KiWiMap map = newMap();
+		Integer[] page = new Integer[10];
+
+		// first pages only - as when paging is stopped midway
+		for (int i = 0; i < 10000; ++i)
+		{
+			ScanCursor<Integer,Integer> cursor = map.kiwi.scan(page, 0, KEYS - 1, page.length);
+			assertEquals(page.length, cursor.getCount());
+		}
+
+		assertReleased(map.kiwi, 0);
+	}
+
+	@Test
+	public void pagedCursorKeepsItsVersion() throws InterruptedException
+	{
+		KiWiMap map = newMap();
+		Integer[] page = new Integer[100];
+
+		ScanCursor<Integer,Integer> cursor = map.kiwi.scan(page, 0, KEYS - 1, page.length);
+		int count = 0;
+
+		while (cursor.getCount() > 0)
+		{
+			for (int i = 0; i < cursor.getCount(); ++i)
+				assertEquals(Integer.valueOf(count++), page[i]);
+
+			// newer versions of the keys not read yet, while the cursor is still used
+			for (int k = count; k < KEYS; ++k)
+				map.put(k, -k);
+			System.gc();
+
+			map.kiwi.scan(page, cursor, page.length);
+		}
+
+		assertEquals(KEYS, count);
+		assertEquals(0, map.kiwi.countOpenScans());
+	}
+
+	/** stress - short-circuiting operations on parallel streams leave parts unread, and the streams aren't closed */
+	@Test
+	public void shortCircuitedStreamsAreReleased() throws InterruptedException
+	{
+		KiWiMap map = new KiWiMap();
+		for (int k = 0; k < KEYS * 10; ++k)
+			map.put(k, k);
+
+		for (int round = 0; round < 10; ++round)
+		{
+			for (int i = 0; i < 500; ++i)
+			{
+				assertEquals(Integer.valueOf(0), map.kiwi.stream(0, KEYS * 10 - 1, true).findFirst().get());
+				assertTrue(map.kiwi.stream(0, KEYS * 10 - 1, true).anyMatch(new java.util.function.Predicate<Integer>() {
+					@Override
+					public boolean test(Integer v) {
+						return v > KEYS;
+					}
+				}));
+
+				Stream<Integer> limited = map.kiwi.stream(0, KEYS * 10 - 1, true).limit(10);
+				assertEquals(10, limited.count());
+			}
+
+			// abandoned scans don't accumulate - the scans of each round are released
+			assertReleased(map.kiwi, 0);
+		}
+	}
+}
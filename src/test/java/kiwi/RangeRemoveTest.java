@@ -0,0 +1,161 @@
+package kiwi;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Range removals (removeRange) - gets & scans skip the keys a tombstone removed, unless they're newer than it or
+ * the scan is older than it, and rebalances drop the removed items once no pending scan needs them.
+ */
+public class RangeRemoveTest
+{
+	private static final int	KEYS = 20000;
+
+	@After
+	public void resetChunkType()
+	{
+		KiWiMap.PrimitiveValues = false;
+		KiWiMap.OffHeap = false;
+	}
+
+	/** @return new map of the given chunk type (0 - heap, 1 - primitive values, 2 - off-heap), with keys [0,count) */
+	private static KiWiMap newMap(int type, int count)
+	{
+		KiWiMap.PrimitiveValues = (type == 1);
+		KiWiMap.OffHeap = (type == 2);
+
+		KiWiMap map = new KiWiMap();
+		for (int k = 0; k < count; ++k)
+			map.put(k, k);
+
+		return map;
+	}
+
+	@Test
+	public void getsAndScansSkipRemovedKeys()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type, KEYS);
+			map.removeRange(5000, 14999);
+
+			// a put after the removal is newer than it
+			map.put(10000, -1);
+
+			for (int compacted = 0; compacted < 2; ++compacted)
+			{
+				assertEquals(Integer.valueOf(4999), map.get(4999));
+				assertNull(map.get(5000));
+				assertNull(map.get(14999));
+				assertEquals(Integer.valueOf(15000), map.get(15000));
+				assertEquals(Integer.valueOf(-1), map.get(10000));
+
+				Integer[] result = new Integer[5];
+				assertEquals(2, map.getRange(result, 4998, 5002));
+				assertArrayEquals(new Integer[] {4998, 4999, null, null, null}, result);
+
+				int[] ints = new int[KEYS];
+				assertEquals(KEYS - 10000 + 1, map.scan(ints, 0, KEYS - 1));
+				assertEquals(-1, ints[5000]);
+				assertEquals(15000, ints[5001]);
+
+				// removed keys are no longer counted, before and after the chunks are compacted
+				assertEquals(KEYS - 10000 + 1, map.approximateSize());
+
+				map.compactAllSerial();
+			}
+			map.close();
+		}
+	}
+
+	@Test
+	public void olderScanSeesRemovedKeys()
+	{
+		KiWiMap map = newMap(0, KEYS);
+		ScanIterator<Integer,Integer> older = map.scan(5000, 5999);
+
+		map.removeRange(0, KEYS - 1);
+
+		// newer versions of other keys - chunks are rebalanced while the older scan is pending
+		for (int i = 1; i <= 5; ++i)
+			for (int k = KEYS; k < KEYS * 2; ++k)
+				map.put(k, -i);
+
+		ScanIterator<Integer,Integer> newer = map.scan(5000, 5999);
+		assertFalse(newer.hasNext());
+
+		// rebalanced chunks keep the removed items for the older scan - but don't count them
+		assertEquals(KEYS, map.approximateSize());
+
+		int count = 0;
+		while (older.hasNext())
+			assertEquals(Integer.valueOf(5000 + count++), older.next());
+		assertEquals(1000, count);
+
+		assertNull(map.get(5000));
+	}
+
+	@Test
+	public void compactionDropsRemovedItems()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type, KEYS);
+			map.compactAllSerial();
+			int before = map.kiwi.debugCountKeysTotal();
+
+			map.removeRange(1000, 2999);
+			map.removeRange(10000, 10999);
+			map.compactAllSerial();
+
+			assertEquals(before - 3000, map.kiwi.debugCountKeysTotal());
+			assertEquals(KEYS - 3000, map.kiwi.count(0, KEYS - 1));
+			assertEquals(KEYS - 3000, map.approximateSize());
+			map.close();
+		}
+	}
+
+	@Test
+	public void approximateSizeCountsRemovedKeys()
+	{
+		for (int type = 0; type < 3; ++type)
+		{
+			KiWiMap map = newMap(type, 1000);
+			map.removeRange(100, 600);
+			assertEquals(499, map.approximateSize());
+
+			// keys removed by a put or by an older range removal aren't counted again, puts after it are
+			map.remove(700);
+			map.removeRange(0, 50);
+			map.removeRange(550, 750);
+			map.put(300, 1);
+			assertEquals(1000 - 501 - 1 - 51 - 149 + 1, map.approximateSize());
+			assertEquals(map.size(), map.approximateSize());
+			map.close();
+		}
+	}
+
+	@Test
+	public void repeatedRemovalsAreApplied()
+	{
+		// a single chunk - its tombstones are applied by a rebalance every MAX_RANGE_TOMBSTONES removals
+		KiWiMap map = newMap(0, 1000);
+		int before = map.kiwi.debugCountKeysTotal();
+		int removals = Chunk.MAX_RANGE_TOMBSTONES * 2;
+
+		for (int i = 0; i < removals; ++i)
+			map.removeRange(i * 10, i * 10 + 4);
+
+		assertEquals(before - removals * 5, map.kiwi.debugCountKeysTotal());
+		for (int i = 0; i < removals; ++i)
+		{
+			assertNull(map.get(i * 10));
+			assertEquals(Integer.valueOf(i * 10 + 5), map.get(i * 10 + 5));
+		}
+	}
+}